@@ -0,0 +1,124 @@
+package gitlet;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/** Represents an immutable set of non-negative ints compressed as an
+ *  EWAH bitmap: the bits go in 64-bit words, and each run of words that
+ *  are all zeros or all ones takes one marker word, followed by the
+ *  literal words up to the next run.
+ *  A marker holds the bit of its run in bit 63, the length of the run in
+ *  words in bits 32 to 62, and the count of literal words after it in bits
+ *  0 to 31. A set of commits reachable from a branch is mostly ones up to
+ *  where the branch forks, so it compresses to a few words.
+ *
+ *  Encoding: the word count, then the words.
+ */
+class Bitmap {
+
+    private static final long RUN_BIT = 1L << 63;
+    private static final int LENGTH_SHIFT = 32;
+    private static final long LITERALS = 0xffffffffL;
+
+    private final long[] words;
+
+    private Bitmap(long[] words) {
+        this.words = words;
+    }
+
+    /** Returns BITS compressed. */
+    static Bitmap of(BitSet bits) {
+        long[] plain = bits.toLongArray();
+        long[] words = new long[plain.length + 1];
+        int size = 0;
+        int i = 0;
+        while (i < plain.length) {
+            long fill = plain[i] == -1L ? -1L : 0L;
+            int run = 0;
+            while (i < plain.length && plain[i] == fill) {
+                run += 1;
+                i += 1;
+            }
+            int marker = size;
+            size += 1;
+            int literals = 0;
+            while (i < plain.length && plain[i] != 0L && plain[i] != -1L) {
+                words[size] = plain[i];
+                size += 1;
+                literals += 1;
+                i += 1;
+            }
+            words[marker] = (fill == -1L ? RUN_BIT : 0L)
+                    | ((long) run << LENGTH_SHIFT) | literals;
+        }
+        return new Bitmap(Arrays.copyOf(words, size));
+    }
+
+    /** Returns whether INDEX is in this set, reading the markers up to the
+     *  word that holds it. */
+    boolean get(int index) {
+        int target = index >>> 6;
+        int word = 0;
+        int i = 0;
+        while (i < words.length) {
+            long marker = words[i];
+            int run = (int) ((marker & ~RUN_BIT) >>> LENGTH_SHIFT);
+            int literals = (int) (marker & LITERALS);
+            if (target < word + run) {
+                return (marker & RUN_BIT) != 0;
+            }
+            word += run;
+            if (target < word + literals) {
+                return (words[i + 1 + target - word] & (1L << index)) != 0;
+            }
+            word += literals;
+            i += 1 + literals;
+        }
+        return false;
+    }
+
+    /** Add every member of this set to BITS. */
+    void orInto(BitSet bits) {
+        int word = 0;
+        int i = 0;
+        while (i < words.length) {
+            long marker = words[i];
+            int run = (int) ((marker & ~RUN_BIT) >>> LENGTH_SHIFT);
+            int literals = (int) (marker & LITERALS);
+            if ((marker & RUN_BIT) != 0) {
+                bits.set(word * 64, (word + run) * 64);
+            }
+            word += run;
+            for (int j = 1; j <= literals; j += 1) {
+                long literal = words[i + j];
+                while (literal != 0) {
+                    bits.set(word * 64 + Long.numberOfTrailingZeros(literal));
+                    literal &= literal - 1;
+                }
+                word += 1;
+            }
+            i += 1 + literals;
+        }
+    }
+
+    /** Returns the number of bytes write puts. */
+    int encodedSize() {
+        return 4 + words.length * 8;
+    }
+
+    void write(ByteBuffer out) {
+        out.putInt(words.length);
+        for (long word : words) {
+            out.putLong(word);
+        }
+    }
+
+    static Bitmap read(ByteBuffer in) {
+        long[] words = new long[in.getInt()];
+        for (int i = 0; i < words.length; i += 1) {
+            words[i] = in.getLong();
+        }
+        return new Bitmap(words);
+    }
+}
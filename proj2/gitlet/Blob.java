@@ -1,48 +1,309 @@
 package gitlet;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import static gitlet.Utils.*;
 
 /** Represents a gitlet blob object.
- *  does at a high level.
+ *  A blob is stored deflated, either in full or as a delta against the
+ *  blob of an earlier version of the same file. Files written before
+ *  compression existed hold raw content and are still read as is.
  *
+ *  Stored form: magic, kind, then for FULL the deflated content, and for
+ *  DELTA the chain depth byte, the 20-byte base id and the deflated delta.
+ *
+ *  A repository cloned without blobs fetches each blob it lacks from the
+ *  repository it was cloned from when the blob is first read, and keeps it.
  */
 class Blob {
 
+    private static final byte[] MAGIC = {'G', 'L', 'B'};
+    private static final byte FULL = 0;
+    private static final byte DELTA = 1;
+    private static final int HEADER_SIZE = MAGIC.length + 1;
+
+    /** The longest chain of deltas a blob may sit on top of. */
+    static final int MAX_DEPTH = 16;
+
+    /** Files above this size are streamed in full instead of delta encoded,
+     *  so memory use stays bounded whatever the file size. */
+    static final long DELTA_LIMIT = 1 << 20;
 
     static String blob(File file) {
-        String content = Utils.readContentsAsString(file);
-        return blob(content);
+        return blob(file, null);
+    }
+
+    /** Store FILE, delta encoded against BASEID when that is smaller.
+     *  Large files are hashed and deflated through a fixed size buffer. */
+    static String blob(File file, String baseId) {
+        return blob(file, sha1(file), baseId);
     }
 
-    static String blob(String content) {
+    /** Store FILE, whose content hashes to BLOBID, as blob(FILE, BASEID). */
+    static String blob(File file, String blobId, String baseId) {
+        File blobFile = looseFile(blobId);
+        if (blobFile.exists() || Pack.contains(blobId)) {
+            return blobId;
+        }
+        Transaction.written(blobFile);
+        if (file.length() <= DELTA_LIMIT) {
+            Utils.writeContents(blobFile, encode(Utils.readContents(file), baseId));
+            return blobId;
+        }
+        try (OutputStream out = Files.newOutputStream(blobFile.toPath())) {
+            out.write(MAGIC);
+            out.write(FULL);
+            DeflaterOutputStream deflated = new DeflaterOutputStream(out);
+            Files.copy(file.toPath(), deflated);
+            deflated.finish();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return blobId;
+    }
+
+    static String blob(byte[] content) {
         String blobId = sha1(content);
         return blob(blobId, content);
     }
 
-    static String blob(String blobId, String content) {
+    static String blob(String blobId, byte[] content) {
+        return blob(blobId, content, null);
+    }
+
+    /** Store CONTENT as blob BLOBID, delta encoded against BASEID when that
+     *  is stored here and the delta is smaller, as for a received blob. */
+    static String blob(String blobId, byte[] content, String baseId) {
+        File blobFile = looseFile(blobId);
+        if (!blobFile.exists() && !Pack.contains(blobId)) {
+            boolean hasBase = !Objects.isNull(baseId) && contains(baseId);
+            Utils.writeContents(blobFile, encode(content, hasBase ? baseId : null));
+            Transaction.written(blobFile);
+        }
+        return blobId;
+    }
+
+    /** Returns whether BLOBID is stored, loose or packed. */
+    static boolean contains(String blobId) {
+        return join(Repository.OBJECTS_DIR, blobId.substring(0, 2), blobId).exists()
+                || Pack.contains(blobId);
+    }
+
+    /** Returns the loose file of BLOBID, creating its directory. */
+    private static File looseFile(String blobId) {
         File dict = join(Repository.OBJECTS_DIR, blobId.substring(0, 2));
         if (!dict.exists()) {
             dict.mkdir();
         }
-        File blobFile = join(dict, blobId);
-        if (!blobFile.exists()) {
-            Utils.writeContents(blobFile, content);
-        }
-        return blobId;
+        return join(dict, blobId);
     }
 
+    /** Returns the content of BLOBID from its loose file or the packfile. */
     static String content(String blobId) {
-        File dict = join(Repository.OBJECTS_DIR, blobId.substring(0, 2));
-        if (!dict.exists()) {
-            return null;
+        byte[] content = bytes(blobId);
+        return Objects.isNull(content) ? null : new String(content, StandardCharsets.UTF_8);
+    }
+
+    /** Returns the rebuilt bytes of BLOBID, or null if it is not stored. */
+    static byte[] bytes(String blobId) {
+        byte[] content = ObjectCache.BLOBS.get(blobId);
+        if (Objects.isNull(content)) {
+            byte[] stored = stored(blobId);
+            if (Objects.isNull(stored)) {
+                Transfer.fetchPromised(List.of(blobId));
+                stored = stored(blobId);
+            }
+            if (Objects.isNull(stored)) {
+                return null;
+            }
+            content = decode(stored);
+            ObjectCache.BLOBS.put(blobId, content, stored.length);
+        }
+        return content;
+    }
+
+    /** Write the content of BLOBID to FILE, streaming it from the object
+     *  store unless it is a delta.  Returns false if it is not stored. */
+    static boolean writeTo(String blobId, File file) {
+        byte[] content = ObjectCache.BLOBS.get(blobId);
+        if (!Objects.isNull(content)) {
+            Utils.writeContents(file, content);
+            return true;
+        }
+        if (!contains(blobId)) {
+            Transfer.fetchPromised(List.of(blobId));
         }
-        File blobFile = join(dict, blobId);
-        if (!blobFile.exists()) {
-            return null;
+        File blobFile = join(Repository.OBJECTS_DIR, blobId.substring(0, 2), blobId);
+        try (InputStream in = blobFile.exists()
+                ? Files.newInputStream(blobFile.toPath()) : Pack.open(blobId)) {
+            if (Objects.isNull(in)) {
+                return false;
+            }
+            byte[] header = in.readNBytes(HEADER_SIZE);
+            if (isEncoded(header) && header[MAGIC.length] == DELTA) {
+                Utils.writeContents(file, bytes(blobId));
+                return true;
+            }
+            try (OutputStream out = Files.newOutputStream(file.toPath())) {
+                if (isEncoded(header)) {
+                    new InflaterInputStream(in).transferTo(out);
+                } else {
+                    out.write(header);
+                    in.transferTo(out);
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return true;
+    }
+
+    private static byte[] stored(String blobId) {
+        File blobFile = join(Repository.OBJECTS_DIR, blobId.substring(0, 2), blobId);
+        if (blobFile.exists()) {
+            return Utils.readContents(blobFile);
+        }
+        return Pack.read(blobId);
+    }
+
+    private static boolean isEncoded(byte[] stored) {
+        return stored.length >= HEADER_SIZE
+                && Arrays.equals(stored, 0, MAGIC.length, MAGIC, 0, MAGIC.length);
+    }
+
+    /** Returns the first LENGTH bytes of the content of loose object FILE,
+     *  or all of it if it is shorter, inflating no more than they need.
+     *  Returns null for a delta, whose content needs its base. */
+    static byte[] head(File file, int length) {
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            byte[] header = in.readNBytes(HEADER_SIZE);
+            if (!isEncoded(header)) {
+                return new SequenceInputStream(new ByteArrayInputStream(header), in)
+                        .readNBytes(length);
+            }
+            if (header[MAGIC.length] == DELTA) {
+                return null;
+            }
+            return new InflaterInputStream(in).readNBytes(length);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns the id of the blob stored BLOBID is a delta against, or null
+     *  if it is stored in full or not at all. Only its header is read. */
+    static String base(String blobId) {
+        File blobFile = join(Repository.OBJECTS_DIR, blobId.substring(0, 2), blobId);
+        try (InputStream in = blobFile.exists()
+                ? Files.newInputStream(blobFile.toPath()) : Pack.open(blobId)) {
+            if (Objects.isNull(in)) {
+                return null;
+            }
+            byte[] header = in.readNBytes(HEADER_SIZE + 1 + 20);
+            if (header.length < HEADER_SIZE + 1 + 20 || !isEncoded(header)
+                    || header[MAGIC.length] != DELTA) {
+                return null;
+            }
+            return bytesToHex(Arrays.copyOfRange(header, HEADER_SIZE + 1, header.length));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns the delta chain depth of stored blob BLOBID. */
+    private static int depth(String blobId) {
+        byte[] stored = stored(blobId);
+        if (Objects.isNull(stored) || !isEncoded(stored) || stored[MAGIC.length] == FULL) {
+            return 0;
+        }
+        return stored[HEADER_SIZE];
+    }
+
+    private static byte[] encode(byte[] content, String baseId) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(MAGIC, 0, MAGIC.length);
+        byte[] full = deflate(content);
+        byte[] base = Objects.isNull(baseId) ? null : bytes(baseId);
+        if (!Objects.isNull(base)) {
+            int depth = depth(baseId) + 1;
+            byte[] delta = deflate(Delta.encode(base, content));
+            if (depth <= MAX_DEPTH && delta.length < full.length) {
+                out.write(DELTA);
+                out.write(depth);
+                out.write(hexToBytes(baseId), 0, 20);
+                out.write(delta, 0, delta.length);
+                return out.toByteArray();
+            }
+        }
+        out.write(FULL);
+        out.write(full, 0, full.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] decode(byte[] stored) {
+        if (!isEncoded(stored)) {
+            return stored;
+        }
+        if (stored[MAGIC.length] == FULL) {
+            return inflate(stored, HEADER_SIZE);
+        }
+        int baseStart = HEADER_SIZE + 1;
+        String baseId = bytesToHex(Arrays.copyOfRange(stored, baseStart, baseStart + 20));
+        byte[] base = bytes(baseId);
+        if (Objects.isNull(base)) {
+            throw error("Missing delta base %s.", baseId);
+        }
+        return Delta.apply(base, inflate(stored, baseStart + 20));
+    }
+
+    static byte[] deflate(byte[] content) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(content);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    static byte[] inflate(byte[] stored, int offset) {
+        Inflater inflater = new Inflater();
+        inflater.setInput(stored, offset, stored.length - offset);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        try {
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw error("Corrupted blob.");
+                }
+                out.write(buffer, 0, count);
+            }
+        } catch (DataFormatException excp) {
+            throw error("Corrupted blob.");
+        } finally {
+            inflater.end();
         }
-        return Utils.readContentsAsString(blobFile);
+        return out.toByteArray();
     }
 
 }
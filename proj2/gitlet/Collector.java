@@ -0,0 +1,215 @@
+package gitlet;
+
+import java.io.File;
+import java.util.*;
+
+import static gitlet.Utils.*;
+
+/** Collects the garbage of a repository: the commits and objects that no
+ *  ref, staged file or unfinished transfer leads to.
+ *  Commits are marked by walking the commit-graph from the roots with a
+ *  stack, in a bitmap over graph positions, and each commit marked adds its
+ *  trees, blobs and the delta bases they are stored against. A tree already
+ *  marked is not read again, so trees shared between commits are read once.
+ *
+ *  Unreachable objects younger than the grace period are kept, with what
+ *  their commits lead to, so work a reset or rm-branch just dropped can
+ *  still be checked out by id. They stay loose, taken out of the packfile
+ *  if needed with its age, so they expire in a later collection. Every
+ *  other unreachable object is deleted, and the reachable ones are repacked
+ *  into a packfile of their own. The commit-graph, the commit index and the
+ *  commit log are rewritten without the commits deleted, their original
+ *  bytes kept by migrate are deleted with them, and the reachability
+ *  bitmaps are written against the new graph.
+ */
+class Collector {
+
+    /** How long unreachable objects are kept, set in milliseconds with the
+     *  gitlet.gcGrace system property. Two weeks by default. */
+    static final long GRACE = Long.getLong("gitlet.gcGrace", 14L * 24 * 60 * 60 * 1000);
+
+    /** Collect the garbage of the current repository, keeping unreachable
+     *  objects written less than GRACE milliseconds ago. Returns the number
+     *  of objects deleted. */
+    static int collect(long grace) {
+        long cutoff = System.currentTimeMillis() - grace;
+        BitSet commits = new BitSet();
+        Set<String> reachable = new HashSet<>();
+        mark(Transfer.haves(), commits, reachable);
+        for (String blobId : Gitlet.getStagingArea().values()) {
+            if (!blobId.equals(Gitlet.STAGED_REMOVAL)) {
+                reachable.add(blobId);
+            }
+        }
+        markBases(reachable);
+
+        TreeMap<String, File> loose = looseObjects();
+        Set<String> young = new HashSet<>();
+        List<String> youngCommits = new ArrayList<>();
+        for (Map.Entry<String, File> object : loose.entrySet()) {
+            if (object.getValue().lastModified() > cutoff) {
+                young.add(object.getKey());
+                if (object.getValue().getParentFile().equals(Repository.COMMITS_DIR)) {
+                    youngCommits.add(object.getKey());
+                }
+            }
+        }
+        long packTime = Repository.PACK_FILE.lastModified();
+        List<String> packedBlobs = Pack.ids(Pack.BLOB);
+        packedBlobs.addAll(Pack.ids(Pack.TREE));
+        List<String> packedCommits = Pack.ids(Pack.COMMIT);
+        if (packTime > cutoff) {
+            young.addAll(packedBlobs);
+            young.addAll(packedCommits);
+            youngCommits.addAll(packedCommits);
+        }
+        Set<String> live = new HashSet<>(reachable);
+        mark(youngCommits, commits, live);
+        live.addAll(young);
+        markBases(live);
+
+        int removed = 0;
+        boolean removedCommits = false;
+        for (String blobId : packedBlobs) {
+            if (!reachable.contains(blobId) && live.contains(blobId)) {
+                unpack(blobId, join(Repository.OBJECTS_DIR, blobId.substring(0, 2)), packTime);
+            } else if (!live.contains(blobId)) {
+                removed += 1;
+            }
+        }
+        for (String commitId : packedCommits) {
+            if (!reachable.contains(commitId) && live.contains(commitId)) {
+                unpack(commitId, Repository.COMMITS_DIR, packTime);
+            } else if (!live.contains(commitId)) {
+                removed += 1;
+                removedCommits = true;
+            }
+        }
+        for (Map.Entry<String, File> object : loose.entrySet()) {
+            if (!live.contains(object.getKey())) {
+                File file = object.getValue();
+                file.delete();
+                removed += 1;
+                if (file.getParentFile().equals(Repository.COMMITS_DIR)) {
+                    removedCommits = true;
+                } else {
+                    file.getParentFile().delete();
+                }
+            }
+        }
+        Pack.repack(reachable);
+        if (removedCommits) {
+            List<String> legacy = plainFilenamesIn(Repository.LEGACY_DIR);
+            if (!Objects.isNull(legacy)) {
+                for (String commitId : legacy) {
+                    if (!live.contains(commitId)) {
+                        join(Repository.LEGACY_DIR, commitId).delete();
+                    }
+                }
+            }
+            Repository.PACK_BITMAP.delete();
+            CommitGraph.current().retain(live);
+            CommitIndex.rebuild(new TreeSet<>(Commit.allIds()));
+            CommitLog.rebuild();
+        }
+        Reachability.write();
+        return removed;
+    }
+
+    /** Mark the commits reachable from COMMITIDS in COMMITS, by commit-graph
+     *  position, and add them with their trees and blobs to LIVE. */
+    private static void mark(Collection<String> commitIds, BitSet commits, Set<String> live) {
+        CommitGraph graph = CommitGraph.current();
+        Deque<Integer> pending = new ArrayDeque<>();
+        for (String commitId : commitIds) {
+            int position = graph.position(commitId);
+            if (position != CommitGraph.NONE && !commits.get(position)) {
+                commits.set(position);
+                pending.push(position);
+            }
+        }
+        while (!pending.isEmpty()) {
+            int current = pending.pop();
+            String commitId = graph.id(current);
+            live.add(commitId);
+            Commit commit = Commit.acquire(commitId);
+            String treeId = commit.getTreeId();
+            if (Objects.isNull(treeId)) {
+                for (String fileName : commit.getAll()) {
+                    live.add(commit.get(fileName));
+                }
+            } else {
+                markTree(treeId, live);
+            }
+            for (int next : new int[]{graph.parent(current), graph.mergedParent(current)}) {
+                if (next != CommitGraph.NONE && !commits.get(next)) {
+                    commits.set(next);
+                    pending.push(next);
+                }
+            }
+        }
+    }
+
+    /** Add tree TREEID with its subtrees and blobs to LIVE, skipping the
+     *  trees LIVE already holds. */
+    private static void markTree(String treeId, Set<String> live) {
+        Deque<String> pending = new ArrayDeque<>();
+        pending.push(treeId);
+        while (!pending.isEmpty()) {
+            String current = pending.pop();
+            if (!live.add(current)) {
+                continue;
+            }
+            for (Map.Entry<String, String> entry : Tree.entries(current).entrySet()) {
+                if (entry.getKey().endsWith("/")) {
+                    pending.push(entry.getValue());
+                } else {
+                    live.add(entry.getValue());
+                }
+            }
+        }
+    }
+
+    /** Add to LIVE the blobs those of LIVE are stored as deltas against. */
+    private static void markBases(Set<String> live) {
+        for (String objectId : new ArrayList<>(live)) {
+            String base = Blob.base(objectId);
+            while (!Objects.isNull(base) && live.add(base)) {
+                base = Blob.base(base);
+            }
+        }
+    }
+
+    /** Returns the loose objects and commits of the current repository as
+     *  id to file. */
+    private static TreeMap<String, File> looseObjects() {
+        TreeMap<String, File> loose = new TreeMap<>();
+        File[] dicts = Repository.OBJECTS_DIR.listFiles(File::isDirectory);
+        if (!Objects.isNull(dicts)) {
+            for (File dict : dicts) {
+                for (String blobId : plainFilenamesIn(dict)) {
+                    loose.put(blobId, join(dict, blobId));
+                }
+            }
+        }
+        List<String> commitIds = plainFilenamesIn(Repository.COMMITS_DIR);
+        if (!Objects.isNull(commitIds)) {
+            for (String commitId : commitIds) {
+                loose.put(commitId, join(Repository.COMMITS_DIR, commitId));
+            }
+        }
+        return loose;
+    }
+
+    /** Write packed object ID to a loose file in DIRECTORY dated TIME, so
+     *  it expires as if it had stayed loose. The file is forced at once, as
+     *  the repack that follows drops the packed copy. */
+    private static void unpack(String id, File directory, long time) {
+        directory.mkdir();
+        File file = join(directory, id);
+        writeContents(file, Pack.read(id));
+        Transaction.force(file);
+        Transaction.force(directory);
+        file.setLastModified(time);
+    }
+}
@@ -1,16 +1,45 @@
 package gitlet;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 
 import static gitlet.Utils.*;
 import static gitlet.Gitlet.*;
 
 /** Represents a gitlet commit object.
- *  does at a high level.
+ *  A commit is stored in a canonical binary encoding whose SHA-1 is its id:
+ *  magic, version, timestamp long, message, parent and merged parent each
+ *  as a presence byte and a 20-byte id, then the 20-byte id of its root
+ *  tree. Strings are varint length prefixed. Version 1 commits hold the
+ *  file count and each file name with its 20-byte blob id instead of a
+ *  tree. Commits written by Java serialization are still read, with no
+ *  classes but those a commit holds allowed, and keep the id they were
+ *  stored under; 'gitlet migrate' rewrites them, keeping their original
+ *  bytes in .gitlet/legacy to send to other repositories.
  */
 public class Commit implements Serializable {
+
+    /** The serial version of the Java-serialized commits of old repositories. */
+    private static final long serialVersionUID = 5026368369602954335L;
+
+    private static final byte[] MAGIC = {'G', 'L', 'C'};
+
+    private static final byte FLAT_VERSION = 1;
+
+    private static final byte VERSION = 2;
+
+    /** The only classes a Java-serialized commit may hold. */
+    private static final ObjectInputFilter SERIALIZED = ObjectInputFilter.Config.createFilter(
+            "gitlet.Commit;java.util.Date;java.util.TreeMap;java.lang.String;!*");
     /**
      *
      * List all instance variables of the Commit class here with a useful
@@ -31,22 +60,85 @@ public class Commit implements Serializable {
     /** The merged parent commit of this Commit. */
     private String mergedParentId;
 
+    /** The flat file map of commits stored before trees, null otherwise. */
     private TreeMap<String, String> commitFiles;
 
+    /** The root tree of this Commit. */
+    private String treeId;
+
+    /** The paths added or removed (mapped to null) since the tree was built. */
+    private transient TreeMap<String, String> changes = new TreeMap<>();
+
+    /** Every file of this Commit, flattened from its tree when first needed. */
+    private transient TreeMap<String, String> files;
+
+    /** The id of this Commit, computed once from its encoding or taken from
+     *  the name it was stored under. */
+    private transient String commitId;
+
     public String getCommitId() {
-        return sha1(serialize(this));
+        if (Objects.isNull(commitId)) {
+            commitId = sha1(encode());
+        }
+        return commitId;
+    }
+    private Commit(String message, Date timestamp, String parentId) {
+        this.message = message;
+        this.timeStamp = timestamp;
+        this.parentId = parentId;
     }
+
     public Commit(String message, Date timestamp) {
         this.message = message;
         this.timeStamp = timestamp;
         Commit headCommit = getHeadCommit();
         if (Objects.isNull(headCommit)) {
-            this.commitFiles = new TreeMap<>();
             this.parentId = null;
         } else {
-            this.commitFiles = headCommit.commitFiles;
-            this.parentId = sha1(serialize(headCommit));
+            this.parentId = headCommit.getCommitId();
+            if (Objects.isNull(headCommit.commitFiles)) {
+                this.treeId = headCommit.getTreeId();
+            } else {
+                this.changes.putAll(headCommit.commitFiles);
+            }
+        }
+    }
+
+    /** Returns the root tree of this Commit, first writing the trees of any
+     *  pending changes. Null for commits stored before trees. */
+    public String getTreeId() {
+        if (Objects.isNull(commitFiles) && (Objects.isNull(treeId) || !changes.isEmpty())) {
+            treeId = Tree.apply(treeId, changes);
+            changes.clear();
         }
+        return treeId;
+    }
+
+    private TreeMap<String, String> getFiles() {
+        if (!Objects.isNull(commitFiles)) {
+            return commitFiles;
+        }
+        if (Objects.isNull(files)) {
+            files = Tree.flatten(getTreeId());
+            if (!Objects.isNull(commitId)) {
+                ObjectCache.COMMITS.resize(commitId, this);
+            }
+        }
+        return files;
+    }
+
+    /** Returns an estimate of the bytes this commit holds in memory, with
+     *  its flattened files once read, for the commit cache. */
+    long memorySize() {
+        long size = 2L * message.length();
+        for (TreeMap<String, String> map : Arrays.asList(commitFiles, files)) {
+            if (!Objects.isNull(map)) {
+                for (String name : map.keySet()) {
+                    size += 2L * name.length() + 160;
+                }
+            }
+        }
+        return size;
     }
 
     public String getMessage() {
@@ -66,26 +158,34 @@ public class Commit implements Serializable {
     }
     public void setMergedParentId(String mergedParentId) {
         this.mergedParentId = mergedParentId;
+        this.commitId = null;
     }
 
     public boolean contains(String name) {
-        return commitFiles.containsKey(name);
+        return !Objects.isNull(get(name));
     }
 
     public String get(String name) {
-        return commitFiles.get(name);
+        if (!(Objects.isNull(commitFiles) && Objects.isNull(files))) {
+            return getFiles().get(name);
+        }
+        return Tree.get(getTreeId(), name);
     }
 
     public Set<String> getAll() {
-        return commitFiles.keySet();
+        return getFiles().keySet();
     }
 
     public void add(String fileName, String blobId) {
-        this.commitFiles.put(fileName, blobId);
+        this.changes.put(fileName, blobId);
+        this.commitId = null;
+        this.files = null;
     }
 
     public void remove(String fileName) {
-        this.commitFiles.remove(fileName);
+        this.changes.put(fileName, null);
+        this.commitId = null;
+        this.files = null;
     }
 
     /** put given tracked file in commit to CWD directory */
@@ -95,48 +195,115 @@ public class Commit implements Serializable {
         if (Objects.isNull(blobId)) {
             return false;
         }
-        Utils.writeContents(file, Blob.content(blobId));
-        return true;
+        file.getParentFile().mkdirs();
+        return Blob.writeTo(blobId, file);
     }
 
-    /** put all tracked files in commit to CWD directory */
-    public void putAll() {
-        Set<String> branchFiles = commitFiles.keySet();
-        for (String name : branchFiles) {
-            put(name);
+    /** Returns every file whose blob differs between this commit and
+     *  OTHER, mapped to its blob id in OTHER or to null if OTHER lacks it. */
+    public TreeMap<String, String> diff(Commit other) {
+        if (Objects.isNull(commitFiles) && Objects.isNull(other.commitFiles)) {
+            return Tree.diff(getTreeId(), other.getTreeId());
+        }
+        TreeMap<String, String> changes = new TreeMap<>();
+        for (String name : getAll()) {
+            if (!other.contains(name)) {
+                changes.put(name, null);
+            }
+        }
+        for (String name : other.getAll()) {
+            if (!other.get(name).equals(get(name))) {
+                changes.put(name, other.get(name));
+            }
         }
+        return changes;
     }
 
     public String save() {
-        String commitId = this.getCommitId();
-        File commFile = join(Repository.COMMITS_DIR, commitId);
-        Utils.writeObject(commFile, this);
-        return commitId;
+        String id = write(encode());
+        CommitGraph.current().add(id);
+        return id;
     }
 
-    public String findSplitPoint(Commit commit) {
-        Queue<Commit> queue = new ArrayDeque<>();
-        Set<String> markedSet = new HashSet<>();
-        queue.add(this);
-        queue.add(commit);
-        while (!queue.isEmpty()) {
-            Commit currentCommit = queue.poll();
-            if (!Objects.isNull(currentCommit)) {
-                String currentId = currentCommit.getCommitId();
-                if (markedSet.contains(currentId)) {
-                    return currentId;
-                } else {
-                    markedSet.add(currentId);
-                }
-                if (!Objects.isNull(currentCommit.parentId)) {
-                    queue.add(Commit.acquire(currentCommit.parentId));
-                }
-                if (!Objects.isNull(currentCommit.mergedParentId)) {
-                    queue.add(Commit.acquire(currentCommit.mergedParentId));
+    /** Write this commit stored as BYTES without adding it to the
+     *  commit-graph, for callers that store several commits before their
+     *  parents are all present. */
+    private String write(byte[] bytes) {
+        String id = this.getCommitId();
+        File commFile = join(Repository.COMMITS_DIR, id);
+        Utils.writeContents(commFile, bytes);
+        Transaction.written(commFile);
+        CommitIndex.add(id);
+        CommitLog.add(this);
+        return id;
+    }
+
+    private byte[] encode() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(MAGIC, 0, MAGIC.length);
+        out.write(Objects.isNull(commitFiles) ? VERSION : FLAT_VERSION);
+        out.writeBytes(ByteBuffer.allocate(8).putLong(timeStamp.getTime()).array());
+        writeString(out, message);
+        for (String parent : new String[]{parentId, mergedParentId}) {
+            out.write(Objects.isNull(parent) ? 0 : 1);
+            if (!Objects.isNull(parent)) {
+                writeId(out, parent);
+            }
+        }
+        if (Objects.isNull(commitFiles)) {
+            writeId(out, getTreeId());
+            return out.toByteArray();
+        }
+        writeVarint(out, commitFiles.size());
+        for (Map.Entry<String, String> file : commitFiles.entrySet()) {
+            writeString(out, file.getKey());
+            writeId(out, file.getValue());
+        }
+        return out.toByteArray();
+    }
+
+    private static boolean isEncoded(byte[] bytes) {
+        return Arrays.equals(bytes, 0, MAGIC.length, MAGIC, 0, MAGIC.length);
+    }
+
+    /** Returns the commit stored as BYTES under COMMITID. */
+    private static Commit decode(String commitId, byte[] bytes) {
+        Commit commit;
+        if (!isEncoded(bytes)) {
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                in.setObjectInputFilter(SERIALIZED);
+                commit = (Commit) in.readObject();
+            } catch (IOException | ClassCastException | ClassNotFoundException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        } else {
+            ByteBuffer in = ByteBuffer.wrap(bytes, MAGIC.length, bytes.length - MAGIC.length);
+            byte version = in.get();
+            if (version != VERSION && version != FLAT_VERSION) {
+                throw error("Unknown commit version.");
+            }
+            Date timestamp = new Date(in.getLong());
+            commit = new Commit(readString(in), timestamp, null);
+            commit.parentId = in.get() == 0 ? null : readId(in);
+            commit.mergedParentId = in.get() == 0 ? null : readId(in);
+            if (version == VERSION) {
+                commit.treeId = readId(in);
+            } else {
+                commit.commitFiles = new TreeMap<>();
+                for (long i = readVarint(in); i > 0; i -= 1) {
+                    commit.commitFiles.put(readString(in), readId(in));
                 }
             }
         }
-        return null;
+        if (Objects.isNull(commit.changes)) {
+            commit.changes = new TreeMap<>();
+        }
+        commit.commitId = commitId;
+        return commit;
+    }
+
+    public String findSplitPoint(Commit commit) {
+        return CommitGraph.current().mergeBase(getCommitId(), commit.getCommitId());
     }
 
 
@@ -144,23 +311,107 @@ public class Commit implements Serializable {
         if (Objects.isNull(commitId)) {
             return null;
         }
+        Commit commit = ObjectCache.COMMITS.get(commitId);
+        if (!Objects.isNull(commit)) {
+            return commit;
+        }
         File commFile = join(Repository.COMMITS_DIR, commitId);
-        if (!commFile.exists()) {
+        byte[] bytes = commFile.exists() ? Utils.readContents(commFile) : Pack.read(commitId);
+        if (Objects.isNull(bytes)) {
             return null;
         }
-        return Utils.readObject(commFile, Commit.class);
+        commit = decode(commitId, bytes);
+        ObjectCache.COMMITS.put(commitId, commit, bytes.length);
+        return commit;
     }
 
-    public static String findCommId(String prefix) {
-        List<String> commitList = Utils.plainFilenamesIn(Repository.COMMITS_DIR);
-        if (!Objects.isNull(commitList)) {
-            for (String commitId : commitList) {
-                if (commitId.startsWith(prefix)) {
-                    return commitId;
-                }
+    public static boolean exists(String commitId) {
+        return join(Repository.COMMITS_DIR, commitId).exists() || Pack.contains(commitId);
+    }
+
+    /** Returns commit COMMITID as stored, as sent to other repositories,
+     *  or null if it is not stored. A commit rewritten by migrate no longer
+     *  hashes to its id, so the bytes it had before are sent, for its
+     *  receiver to check. */
+    static byte[] stored(String commitId) {
+        File commFile = join(Repository.COMMITS_DIR, commitId);
+        byte[] bytes = commFile.exists() ? readContents(commFile) : Pack.read(commitId);
+        if (Objects.isNull(bytes) || sha1(bytes).equals(commitId)) {
+            return bytes;
+        }
+        File legacy = join(Repository.LEGACY_DIR, commitId);
+        bytes = legacy.exists() ? readContents(legacy) : null;
+        if (Objects.isNull(bytes) || !sha1(bytes).equals(commitId)) {
+            throw error("Corrupted commit %s.", commitId);
+        }
+        return bytes;
+    }
+
+    /** Store commit COMMITID received from another repository as BYTES,
+     *  unless it is stored already. BYTES must hash to COMMITID, and are
+     *  stored as received, so the commit can be checked again when it is
+     *  sent on. */
+    static void receive(String commitId, byte[] bytes) {
+        if (!sha1(bytes).equals(commitId)) {
+            throw error("Corrupted commit %s.", commitId);
+        }
+        if (!exists(commitId)) {
+            decode(commitId, bytes).write(bytes);
+        }
+    }
+
+    /** Rewrite every Java-serialized commit of the current repository in
+     *  the binary encoding, still stored under its old id, so other
+     *  repositories holding it keep the same history. Its original bytes
+     *  are kept in the legacy directory first, as stored sends them.
+     *  Packed commits are rewritten as loose ones, which are read in
+     *  preference to the packfile. Returns the number of commits
+     *  rewritten. */
+    static int migrate() {
+        int migrated = 0;
+        File temp = join(Repository.COMMITS_DIR.getParentFile(), "commit.tmp");
+        for (String commitId : allIds()) {
+            File commFile = join(Repository.COMMITS_DIR, commitId);
+            byte[] bytes = commFile.exists() ? readContents(commFile) : Pack.read(commitId);
+            if (isEncoded(bytes)) {
+                continue;
+            }
+            Repository.LEGACY_DIR.mkdir();
+            File legacy = join(Repository.LEGACY_DIR, commitId);
+            writeContents(legacy, bytes);
+            Transaction.force(legacy);
+            Transaction.force(Repository.LEGACY_DIR);
+            writeContents(temp, decode(commitId, bytes).encode());
+            try {
+                Files.move(temp.toPath(), commFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Transaction.written(commFile);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
             }
+            migrated += 1;
+        }
+        return migrated;
+    }
+
+    /** Returns the ids of all loose and packed commits in sorted order. */
+    public static List<String> allIds() {
+        TreeSet<String> commitIds = new TreeSet<>(Pack.ids(Pack.COMMIT));
+        List<String> loose = Utils.plainFilenamesIn(Repository.COMMITS_DIR);
+        if (!Objects.isNull(loose)) {
+            commitIds.addAll(loose);
+        }
+        return new ArrayList<>(commitIds);
+    }
+
+    /** Returns the id of the only commit whose id starts with PREFIX, or
+     *  null if there is none. */
+    public static String findCommId(String prefix) {
+        List<String> commitIds = CommitIndex.find(prefix, 2);
+        if (commitIds.size() > 1) {
+            Repository.error("Ambiguous commit id.");
         }
-        return null;
+        return commitIds.isEmpty() ? null : commitIds.get(0);
     }
 
 }
@@ -0,0 +1,469 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import static gitlet.Utils.*;
+
+/** Represents the commit-graph of a repository.
+ *  Each commit is one fixed-width record of (20-byte id, parent position,
+ *  merged parent position, generation, timestamp), appended after its
+ *  parents, so history can be walked by position without reading commits.
+ *  A missing parent is NONE, and the generation of a commit is one more
+ *  than the largest generation of its parents.
+ *
+ *  Commits that are not in the file yet, as in repositories created before
+ *  the graph existed, are read once and added in memory; they are written
+ *  out together with the next commit saved.
+ */
+class CommitGraph {
+
+    static final int NONE = -1;
+
+    private static final int MAGIC = 0x47434731;
+    private static final int RECORD_SIZE = 20 + 4 + 4 + 4 + 8;
+
+    /** The paint of commits during mergeBases. */
+    private static final int FIRST = 1;
+    private static final int SECOND = 2;
+    private static final int STALE = 4;
+    private static final int RESULT = 8;
+
+    /** The graphs loaded during this invocation, by commit-graph file. */
+    private static final HashMap<File, CommitGraph> GRAPHS = new HashMap<>();
+
+    private final File file;
+
+    private final ArrayList<String> ids = new ArrayList<>();
+    private final HashMap<String, Integer> positions = new HashMap<>();
+    private int[] parents = new int[16];
+    private int[] mergedParents = new int[16];
+    private int[] generations = new int[16];
+    private long[] timestamps = new long[16];
+
+    /** The number of records already written to FILE. */
+    private int persisted;
+
+    /** Returns the graph of the current repository. */
+    static CommitGraph current() {
+        return GRAPHS.computeIfAbsent(Repository.COMMIT_GRAPH, CommitGraph::new);
+    }
+
+    /** Drop the graphs read so far, so they are read again when needed. */
+    static void clear() {
+        GRAPHS.clear();
+    }
+
+    private CommitGraph(File file) {
+        this.file = file;
+        if (!file.exists()) {
+            return;
+        }
+        ByteBuffer in = ByteBuffer.wrap(readContents(file));
+        if (in.getInt() != MAGIC) {
+            throw error("Corrupted commit-graph.");
+        }
+        while (in.remaining() >= RECORD_SIZE) {
+            append(readId(in), in.getInt(), in.getInt(), in.getInt(), in.getLong());
+        }
+        persisted = ids.size();
+    }
+
+    private int append(String id, int parent, int mergedParent, int generation, long timestamp) {
+        int position = ids.size();
+        if (position == parents.length) {
+            int capacity = position * 2;
+            parents = Arrays.copyOf(parents, capacity);
+            mergedParents = Arrays.copyOf(mergedParents, capacity);
+            generations = Arrays.copyOf(generations, capacity);
+            timestamps = Arrays.copyOf(timestamps, capacity);
+        }
+        ids.add(id);
+        positions.put(id, position);
+        parents[position] = parent;
+        mergedParents[position] = mergedParent;
+        generations[position] = generation;
+        timestamps[position] = timestamp;
+        return position;
+    }
+
+    int size() {
+        return ids.size();
+    }
+
+    /** Returns the position of COMMITID, adding it and any of its ancestors
+     *  missing from the graph, or NONE if no such commit is stored. */
+    int position(String commitId) {
+        if (Objects.isNull(commitId)) {
+            return NONE;
+        }
+        Integer known = positions.get(commitId);
+        if (!Objects.isNull(known)) {
+            return known;
+        }
+        HashMap<String, Commit> loaded = new HashMap<>();
+        Set<String> missing = new HashSet<>();
+        Deque<String> stack = new ArrayDeque<>();
+        stack.push(commitId);
+        while (!stack.isEmpty()) {
+            String id = stack.peek();
+            if (positions.containsKey(id) || missing.contains(id)) {
+                stack.pop();
+                continue;
+            }
+            Commit commit = loaded.computeIfAbsent(id, Commit::acquire);
+            if (Objects.isNull(commit)) {
+                stack.pop();
+                missing.add(id);
+                continue;
+            }
+            boolean ready = true;
+            for (String parentId : new String[]{commit.getParentId(), commit.getMergedParentId()}) {
+                if (!(Objects.isNull(parentId) || positions.containsKey(parentId)
+                        || missing.contains(parentId))) {
+                    stack.push(parentId);
+                    ready = false;
+                }
+            }
+            if (ready) {
+                stack.pop();
+                int parent = positions.getOrDefault(commit.getParentId(), NONE);
+                int mergedParent = positions.getOrDefault(commit.getMergedParentId(), NONE);
+                int generation = 1 + Math.max(generation(parent), generation(mergedParent));
+                append(id, parent, mergedParent, generation, commit.getTimeStamp().getTime());
+                loaded.remove(id);
+            }
+        }
+        return positions.getOrDefault(commitId, NONE);
+    }
+
+    String id(int position) {
+        return ids.get(position);
+    }
+
+    int parent(int position) {
+        return parents[position];
+    }
+
+    int mergedParent(int position) {
+        return mergedParents[position];
+    }
+
+    /** Returns the generation of POSITION, or 0 for NONE. */
+    int generation(int position) {
+        return position == NONE ? 0 : generations[position];
+    }
+
+    long timestamp(int position) {
+        return timestamps[position];
+    }
+
+    /** Add COMMITID to the graph and write out all unwritten records. */
+    void add(String commitId) {
+        position(commitId);
+        flush();
+    }
+
+    /** Append the unwritten records to FILE, first cutting off any partial
+     *  record left by an interrupted write. */
+    void flush() {
+        if (persisted == ids.size()) {
+            return;
+        }
+        ByteBuffer out = ByteBuffer.allocate((persisted == 0 ? 4 : 0)
+                + (ids.size() - persisted) * RECORD_SIZE);
+        if (persisted == 0) {
+            out.putInt(MAGIC);
+        }
+        for (int i = persisted; i < ids.size(); i += 1) {
+            out.put(hexToBytes(ids.get(i)));
+            out.putInt(parents[i]);
+            out.putInt(mergedParents[i]);
+            out.putInt(generations[i]);
+            out.putLong(timestamps[i]);
+        }
+        out.flip();
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long end = persisted == 0 ? 0 : 4 + (long) persisted * RECORD_SIZE;
+            channel.truncate(end);
+            channel.position(end);
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        persisted = ids.size();
+    }
+
+    /** Rewrite FILE with only the commits of KEEP, which holds the parents
+     *  of each of them, and drop this graph so it is read again. */
+    void retain(Set<String> keep) {
+        int[] moved = new int[ids.size()];
+        int count = 0;
+        for (int i = 0; i < ids.size(); i += 1) {
+            moved[i] = keep.contains(ids.get(i)) ? count++ : NONE;
+        }
+        ByteBuffer out = ByteBuffer.allocate(4 + count * RECORD_SIZE);
+        out.putInt(MAGIC);
+        for (int i = 0; i < ids.size(); i += 1) {
+            if (moved[i] == NONE) {
+                continue;
+            }
+            out.put(hexToBytes(ids.get(i)));
+            out.putInt(parents[i] == NONE ? NONE : moved[parents[i]]);
+            out.putInt(mergedParents[i] == NONE ? NONE : moved[mergedParents[i]]);
+            out.putInt(generations[i]);
+            out.putLong(timestamps[i]);
+        }
+        File temp = join(file.getParentFile(), "commit-graph.tmp");
+        writeContents(temp, out.array());
+        try {
+            Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        GRAPHS.remove(file);
+    }
+
+    /** Returns whether ANCESTORID is DESCENDANTID or one of its ancestors.
+     *  Commits of lower generation than the ancestor cannot lead to it, so
+     *  the walk stops there, and a commit with a reachability bitmap answers
+     *  for all of its ancestors. */
+    boolean isAncestor(String ancestorId, String descendantId) {
+        int ancestor = position(ancestorId);
+        int descendant = position(descendantId);
+        if (ancestor == NONE || descendant == NONE) {
+            return false;
+        }
+        int floor = generation(ancestor);
+        Reachability bitmaps = Reachability.current();
+        BitSet visited = new BitSet();
+        Deque<Integer> queue = new ArrayDeque<>();
+        queue.add(descendant);
+        while (!queue.isEmpty()) {
+            int current = queue.poll();
+            if (current == ancestor) {
+                return true;
+            }
+            Bitmap bitmap = bitmaps.get(current);
+            if (!Objects.isNull(bitmap)) {
+                if (bitmap.get(ancestor)) {
+                    return true;
+                }
+                continue;
+            }
+            for (int next : new int[]{parent(current), mergedParent(current)}) {
+                if (next != NONE && generation(next) >= floor && !visited.get(next)) {
+                    visited.set(next);
+                    queue.add(next);
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Returns a best common ancestor of FIRSTID and SECONDID, the one of
+     *  highest generation among mergeBases, or null if they have none. */
+    String mergeBase(String firstId, String secondId) {
+        List<String> bases = mergeBases(firstId, secondId);
+        return bases.isEmpty() ? null : bases.get(0);
+    }
+
+    /** Returns every best common ancestor of FIRSTID and SECONDID, highest
+     *  generation first: the common ancestors that are not ancestors of
+     *  another one. Criss-cross merges have several.
+     *  Commits are visited highest generation first and painted with the
+     *  sides they are reached from. A commit painted from both sides is a
+     *  candidate, and its ancestors are painted stale, so the walk ends once
+     *  only stale commits are queued, after reading the commits that are
+     *  not shared by both histories and few more. The queued commits that
+     *  are not stale are counted as they are queued, polled and painted. */
+    List<String> mergeBases(String firstId, String secondId) {
+        int first = position(firstId);
+        int second = position(secondId);
+        List<String> bases = new ArrayList<>();
+        if (first == NONE || second == NONE) {
+            return bases;
+        }
+        if (first == second) {
+            bases.add(id(first));
+            return bases;
+        }
+        HashMap<Integer, Integer> paint = new HashMap<>();
+        PriorityQueue<Integer> queue = new PriorityQueue<>(
+                (a, b) -> generation(a) != generation(b)
+                        ? Integer.compare(generation(b), generation(a))
+                        : Long.compare(timestamp(b), timestamp(a)));
+        paint.put(first, FIRST);
+        paint.put(second, SECOND);
+        queue.add(first);
+        queue.add(second);
+        Set<Integer> queued = new HashSet<>(List.of(first, second));
+        int active = 2;
+        List<Integer> candidates = new ArrayList<>();
+        while (active > 0) {
+            int current = queue.poll();
+            queued.remove(current);
+            int color = paint.get(current);
+            if ((color & STALE) == 0) {
+                active -= 1;
+            }
+            int flags = color & (FIRST | SECOND | STALE);
+            if ((flags & (FIRST | SECOND)) == (FIRST | SECOND)) {
+                if ((color & (RESULT | STALE)) == 0) {
+                    paint.put(current, color | RESULT);
+                    candidates.add(current);
+                }
+                flags |= STALE;
+            }
+            for (int next : new int[]{parent(current), mergedParent(current)}) {
+                int old = next == NONE ? flags : paint.getOrDefault(next, 0);
+                if ((old & flags) != flags) {
+                    paint.put(next, old | flags);
+                    if (queued.add(next)) {
+                        queue.add(next);
+                        if ((flags & STALE) == 0 && (old & STALE) == 0) {
+                            active += 1;
+                        }
+                    } else if ((flags & STALE) != 0 && (old & STALE) == 0) {
+                        active -= 1;
+                    }
+                }
+            }
+        }
+        for (int candidate : candidates) {
+            if ((paint.get(candidate) & STALE) != 0) {
+                continue;
+            }
+            boolean redundant = false;
+            for (int other : candidates) {
+                if (other != candidate && (paint.get(other) & STALE) == 0
+                        && isAncestor(id(candidate), id(other))) {
+                    redundant = true;
+                    break;
+                }
+            }
+            if (!redundant) {
+                bases.add(id(candidate));
+            }
+        }
+        return bases;
+    }
+
+    /** Returns the commits reachable from HEADID through either parent but
+     *  from none of EXCLUDEDIDS, parents before children. Excluded ids that
+     *  are not stored are ignored.
+     *  Commits are visited highest generation first, so a commit is marked
+     *  uninteresting by every excluded descendant before it is visited, and
+     *  the walk ends once no interesting commit is queued, after reading the
+     *  commits it returns and few more. */
+    List<String> only(String headId, Collection<String> excludedIds) {
+        return only(headId, excludedIds, 0);
+    }
+
+    /** As only, but if DEPTH is positive leaves out the commits DEPTH or
+     *  more parents away from HEADID. A commit is visited after all of its
+     *  children, so its distance is known by then. */
+    List<String> only(String headId, Collection<String> excludedIds, int depth) {
+        List<String> result = new ArrayList<>();
+        int head = position(headId);
+        if (head == NONE) {
+            return result;
+        }
+        Reachability bitmaps = Reachability.current();
+        if (depth <= 0 && !bitmaps.isEmpty()) {
+            return onlyByBitmaps(head, excludedIds, bitmaps);
+        }
+        BitSet uninteresting = new BitSet();
+        BitSet seen = new BitSet();
+        BitSet visited = new BitSet();
+        PriorityQueue<Integer> queue = new PriorityQueue<>(
+                (a, b) -> Integer.compare(generation(b), generation(a)));
+        for (String excludedId : excludedIds) {
+            int excluded = position(excludedId);
+            if (excluded != NONE && !seen.get(excluded)) {
+                seen.set(excluded);
+                uninteresting.set(excluded);
+                queue.add(excluded);
+            }
+        }
+        HashMap<Integer, Integer> distances = new HashMap<>();
+        distances.put(head, 0);
+        int interesting = 0;
+        if (!seen.get(head)) {
+            seen.set(head);
+            queue.add(head);
+            interesting += 1;
+        }
+        while (interesting > 0) {
+            int current = queue.poll();
+            visited.set(current);
+            boolean marked = uninteresting.get(current);
+            int distance = marked ? 0 : distances.remove(current);
+            if (!marked) {
+                interesting -= 1;
+                if (depth > 0 && distance >= depth) {
+                    continue;
+                }
+                result.add(id(current));
+            }
+            for (int next : new int[]{parent(current), mergedParent(current)}) {
+                if (next == NONE) {
+                    continue;
+                }
+                if (!seen.get(next)) {
+                    seen.set(next);
+                    queue.add(next);
+                    if (marked) {
+                        uninteresting.set(next);
+                    } else {
+                        interesting += 1;
+                    }
+                } else if (marked && !uninteresting.get(next)) {
+                    uninteresting.set(next);
+                    if (!visited.get(next)) {
+                        interesting -= 1;
+                    }
+                }
+                if (!marked) {
+                    distances.merge(next, distance + 1, Math::min);
+                }
+            }
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    /** As only, from the commit at HEAD, with the commits reachable from
+     *  EXCLUDEDIDS and HEAD taken from BITMAPS. The commits made since the
+     *  bitmaps were written are walked, and the ones reachable from HEAD are
+     *  walked only down to the excluded ones. A commit is always at a higher
+     *  position than its parents, so position order puts parents first. */
+    private List<String> onlyByBitmaps(int head, Collection<String> excludedIds,
+                                       Reachability bitmaps) {
+        BitSet excluded = new BitSet();
+        BitSet none = new BitSet();
+        for (String excludedId : excludedIds) {
+            int position = position(excludedId);
+            if (position != NONE) {
+                bitmaps.reach(this, position, excluded, none);
+            }
+        }
+        BitSet wanted = bitmaps.reach(this, head, new BitSet(), excluded);
+        wanted.andNot(excluded);
+        List<String> result = new ArrayList<>();
+        for (int i = wanted.nextSetBit(0); i >= 0; i = wanted.nextSetBit(i + 1)) {
+            result.add(id(i));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,134 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import static gitlet.Utils.*;
+
+/** Represents the sorted index of all commit ids of a repository, so that
+ *  an abbreviated id is resolved by binary search instead of a listing of
+ *  the commits directory.
+ *  New ids are appended to a small unsorted journal as raw 20-byte ids and
+ *  merged into the sorted file once the journal holds MERGE_THRESHOLD ids.
+ *  A repository without an index builds it from its commits on first use.
+ */
+class CommitIndex {
+
+    private static final int MERGE_THRESHOLD = 256;
+
+    private static final int ID_BYTES = UID_LENGTH / 2;
+
+    /** Record COMMITID as stored in the current repository. */
+    static void add(String commitId) {
+        File journal = Repository.COMMIT_JOURNAL;
+        if (journal.length() + ID_BYTES > (long) MERGE_THRESHOLD * ID_BYTES
+                && Repository.COMMIT_INDEX.exists()) {
+            TreeSet<String> ids = new TreeSet<>(journalIds());
+            ids.addAll(sortedIds());
+            ids.add(commitId);
+            rebuild(ids);
+            return;
+        }
+        try {
+            Files.write(journal.toPath(), hexToBytes(commitId),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Replace the index of the current repository with the sorted IDS. */
+    static void rebuild(SortedSet<String> ids) {
+        ByteBuffer out = ByteBuffer.allocate(ids.size() * ID_BYTES);
+        for (String id : ids) {
+            out.put(hexToBytes(id));
+        }
+        File temp = join(Repository.COMMIT_INDEX.getParentFile(), "commit-ids.tmp");
+        writeContents(temp, out.array());
+        try {
+            Files.move(temp.toPath(), Repository.COMMIT_INDEX.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        Repository.COMMIT_JOURNAL.delete();
+    }
+
+    /** Returns up to LIMIT ids of the current repository starting with PREFIX. */
+    static List<String> find(String prefix, int limit) {
+        if (!Repository.COMMIT_INDEX.exists()) {
+            TreeSet<String> ids = new TreeSet<>(Commit.allIds());
+            ids.addAll(journalIds());
+            rebuild(ids);
+        }
+        prefix = prefix.toLowerCase(Locale.ROOT);
+        TreeSet<String> found = new TreeSet<>();
+        ByteBuffer sorted = map(Repository.COMMIT_INDEX);
+        int count = sorted.capacity() / ID_BYTES;
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (idAt(sorted, mid).compareTo(prefix) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        for (int i = low; i < count && found.size() < limit; i += 1) {
+            String id = idAt(sorted, i);
+            if (!id.startsWith(prefix)) {
+                break;
+            }
+            found.add(id);
+        }
+        for (String id : journalIds()) {
+            if (id.startsWith(prefix)) {
+                found.add(id);
+            }
+        }
+        List<String> result = new ArrayList<>(found);
+        return result.size() > limit ? result.subList(0, limit) : result;
+    }
+
+    private static String idAt(ByteBuffer sorted, int position) {
+        byte[] id = new byte[ID_BYTES];
+        sorted.get(position * ID_BYTES, id);
+        return bytesToHex(id);
+    }
+
+    private static ByteBuffer map(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static List<String> sortedIds() {
+        ByteBuffer sorted = map(Repository.COMMIT_INDEX);
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < sorted.capacity() / ID_BYTES; i += 1) {
+            ids.add(idAt(sorted, i));
+        }
+        return ids;
+    }
+
+    private static List<String> journalIds() {
+        File journal = Repository.COMMIT_JOURNAL;
+        List<String> ids = new ArrayList<>();
+        if (journal.exists()) {
+            ByteBuffer in = ByteBuffer.wrap(readContents(journal));
+            while (in.remaining() >= ID_BYTES) {
+                ids.add(readId(in));
+            }
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,466 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Predicate;
+
+import static gitlet.Utils.*;
+
+/** Represents the commit log of a repository: the id, parents, timestamp
+ *  and message of every stored commit, appended as each is written, so
+ *  that global-log and find never decode commits. An inverted index maps
+ *  the hash of each message, and of each word in it, to the offsets of the
+ *  records holding it, so find is a lookup.
+ *
+ *  Log file:   magic, then records of (magic, payload length, payload,
+ *              payload length). A payload is the 20-byte id, the parent and
+ *              merged parent each as a presence byte and a 20-byte id, the
+ *              timestamp long and the message. The trailing length lets an
+ *              append check the last record without reading the others.
+ *  Index file: magic, the log length it covers, then entries of (term hash
+ *              long, record offset long) sorted by hash.
+ *  New entries are appended to an unsorted journal and merged into the
+ *  index once it holds MERGE_THRESHOLD of them. Records past the indexed
+ *  length are scanned. A repository without a log reads its commits until
+ *  the next commit builds the log.
+ */
+class CommitLog {
+
+    /** The log data of one commit. */
+    static class Record {
+        final String id;
+        final String parentId;
+        final String mergedParentId;
+        final Date timeStamp;
+        final String message;
+
+        Record(String id, String parentId, String mergedParentId,
+               Date timeStamp, String message) {
+            this.id = id;
+            this.parentId = parentId;
+            this.mergedParentId = mergedParentId;
+            this.timeStamp = timeStamp;
+            this.message = message;
+        }
+
+        static Record of(Commit commit) {
+            return new Record(commit.getCommitId(), commit.getParentId(),
+                    commit.getMergedParentId(), commit.getTimeStamp(), commit.getMessage());
+        }
+    }
+
+    private static final int LOG_MAGIC = 0x474c4c31;
+    private static final int RECORD_MAGIC = 0x474c5231;
+    private static final int INDEX_MAGIC = 0x474d4931;
+
+    private static final int LOG_HEADER = 4;
+    private static final int INDEX_HEADER = 4 + 8;
+    private static final int ENTRY_SIZE = 16;
+
+    private static final int MERGE_THRESHOLD = 4096;
+
+    /** Add COMMIT, just written, to the log and the index. A missing log,
+     *  or one whose last record was cut off, is built again instead. */
+    static void add(Commit commit) {
+        File log = Repository.COMMIT_LOG;
+        if (!log.exists()) {
+            rebuild();
+            return;
+        }
+        byte[] record = encode(Record.of(commit));
+        boolean complete;
+        try (FileChannel channel = FileChannel.open(log.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.READ)) {
+            long offset = channel.size();
+            complete = isComplete(channel, offset);
+            ByteBuffer out = ByteBuffer.wrap(record);
+            while (complete && out.hasRemaining()) {
+                channel.write(out, offset + out.position());
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (!complete) {
+            rebuild();
+            return;
+        }
+        long covered = covered();
+        TreeMap<Long, Record> pending = new TreeMap<>(tail(covered));
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        for (Map.Entry<Long, Record> entry : pending.entrySet()) {
+            for (long hash : terms(entry.getValue().message)) {
+                entries.writeBytes(ByteBuffer.allocate(ENTRY_SIZE)
+                        .putLong(hash).putLong(entry.getKey()).array());
+            }
+        }
+        appendJournal(entries.toByteArray());
+        if (Repository.MESSAGE_JOURNAL.length() > (long) MERGE_THRESHOLD * ENTRY_SIZE) {
+            writeIndex(readLog(), log.length());
+        }
+    }
+
+    /** Returns whether the log, of length END, ends with a whole record. */
+    private static boolean isComplete(FileChannel channel, long end) throws IOException {
+        if (end == LOG_HEADER) {
+            return true;
+        }
+        if (end < LOG_HEADER + 16) {
+            return false;
+        }
+        ByteBuffer trailer = ByteBuffer.allocate(4);
+        channel.read(trailer, end - 4);
+        long start = end - 12 - trailer.getInt(0);
+        if (start < LOG_HEADER) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(8);
+        channel.read(header, start);
+        return header.getInt(0) == RECORD_MAGIC && header.getInt(4) == trailer.getInt(0);
+    }
+
+    /** Build the log and index of the current repository from its commits. */
+    static void rebuild() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(ByteBuffer.allocate(LOG_HEADER).putInt(LOG_MAGIC).array());
+        TreeMap<Long, Record> records = new TreeMap<>();
+        for (String commitId : Commit.allIds()) {
+            Record record = Record.of(Commit.acquire(commitId));
+            records.put((long) out.size(), record);
+            out.writeBytes(encode(record));
+        }
+        replace(Repository.COMMIT_LOG, out.toByteArray());
+        writeIndex(records, out.size());
+    }
+
+    /** Replace the index with the terms of RECORDS, covering the log up to
+     *  COVERED, and empty the journal. */
+    private static void writeIndex(SortedMap<Long, Record> records, long covered) {
+        ArrayList<long[]> entries = new ArrayList<>();
+        for (Map.Entry<Long, Record> entry : records.entrySet()) {
+            for (long hash : terms(entry.getValue().message)) {
+                entries.add(new long[]{hash, entry.getKey()});
+            }
+        }
+        entries.sort((a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0])
+                : Long.compare(a[1], b[1]));
+        ByteBuffer out = ByteBuffer.allocate(INDEX_HEADER + entries.size() * ENTRY_SIZE);
+        out.putInt(INDEX_MAGIC).putLong(covered);
+        for (long[] entry : entries) {
+            out.putLong(entry[0]).putLong(entry[1]);
+        }
+        replace(Repository.MESSAGE_INDEX, out.array());
+        Repository.MESSAGE_JOURNAL.delete();
+    }
+
+    private static void replace(File file, byte[] contents) {
+        File temp = join(file.getParentFile(), file.getName() + ".tmp");
+        writeContents(temp, contents);
+        try {
+            Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Append ENTRIES to the journal, first cutting off a partial entry. */
+    private static void appendJournal(byte[] entries) {
+        try (FileChannel channel = FileChannel.open(Repository.MESSAGE_JOURNAL.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long end = channel.size() - channel.size() % ENTRY_SIZE;
+            channel.truncate(end);
+            ByteBuffer out = ByteBuffer.wrap(entries);
+            while (out.hasRemaining()) {
+                channel.write(out, end + out.position());
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns the length of the log covered by the index and its journal.
+     *  Only the header of the index is read. */
+    private static long covered() {
+        long covered = LOG_HEADER;
+        File index = Repository.MESSAGE_INDEX;
+        if (index.exists()) {
+            try (FileChannel channel = FileChannel.open(index.toPath())) {
+                ByteBuffer header = read(channel, 0, INDEX_HEADER);
+                if (header.limit() == INDEX_HEADER && header.getInt(0) == INDEX_MAGIC) {
+                    covered = header.getLong(4);
+                }
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        long last = -1;
+        for (long[] entry : journal()) {
+            last = Math.max(last, entry[1]);
+        }
+        if (last >= covered) {
+            try (FileChannel channel = FileChannel.open(Repository.COMMIT_LOG.toPath())) {
+                ByteBuffer length = ByteBuffer.allocate(4);
+                channel.read(length, last + 4);
+                covered = last + 12 + length.getInt(0);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        return covered;
+    }
+
+    private static List<long[]> journal() {
+        List<long[]> entries = new ArrayList<>();
+        File journal = Repository.MESSAGE_JOURNAL;
+        if (journal.exists()) {
+            ByteBuffer in = ByteBuffer.wrap(readContents(journal));
+            while (in.remaining() >= ENTRY_SIZE) {
+                entries.add(new long[]{in.getLong(), in.getLong()});
+            }
+        }
+        return entries;
+    }
+
+    /** Returns every whole record of the log by offset. */
+    private static TreeMap<Long, Record> readLog() {
+        return tail(LOG_HEADER);
+    }
+
+    /** Returns the whole records of the log from offset START on, reading
+     *  only that part of the log. */
+    private static TreeMap<Long, Record> tail(long start) {
+        TreeMap<Long, Record> records = new TreeMap<>();
+        ByteBuffer in;
+        long from;
+        try (FileChannel channel = FileChannel.open(Repository.COMMIT_LOG.toPath())) {
+            ByteBuffer magic = read(channel, 0, LOG_HEADER);
+            if (magic.limit() < LOG_HEADER || magic.getInt(0) != LOG_MAGIC) {
+                throw error("Corrupted commit log.");
+            }
+            from = Math.min(Math.max(start, LOG_HEADER), channel.size());
+            in = read(channel, from, (int) (channel.size() - from));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        while (in.remaining() >= 12) {
+            int offset = in.position();
+            int length = in.getInt(offset + 4);
+            if (in.getInt(offset) != RECORD_MAGIC || length < 0
+                    || in.remaining() < length + 12) {
+                break;
+            }
+            in.position(offset + 8);
+            records.put(from + offset, decode(in));
+            in.position(offset + 12 + length);
+        }
+        return records;
+    }
+
+    /** Returns up to LENGTH bytes of CHANNEL from POSITION on, fewer if it
+     *  ends first. */
+    private static ByteBuffer read(FileChannel channel, long position, int length)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        int read = 0;
+        while (buffer.hasRemaining() && read >= 0) {
+            read = channel.read(buffer, position + buffer.position());
+        }
+        return buffer.flip();
+    }
+
+    private static byte[] encode(Record record) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        writeId(payload, record.id);
+        for (String parent : new String[]{record.parentId, record.mergedParentId}) {
+            payload.write(Objects.isNull(parent) ? 0 : 1);
+            if (!Objects.isNull(parent)) {
+                writeId(payload, parent);
+            }
+        }
+        payload.writeBytes(ByteBuffer.allocate(8).putLong(record.timeStamp.getTime()).array());
+        writeString(payload, record.message);
+        byte[] bytes = payload.toByteArray();
+        return ByteBuffer.allocate(bytes.length + 12).putInt(RECORD_MAGIC)
+                .putInt(bytes.length).put(bytes).putInt(bytes.length).array();
+    }
+
+    private static Record decode(ByteBuffer in) {
+        String id = readId(in);
+        String parentId = in.get() == 0 ? null : readId(in);
+        String mergedParentId = in.get() == 0 ? null : readId(in);
+        Date timeStamp = new Date(in.getLong());
+        return new Record(id, parentId, mergedParentId, timeStamp, readString(in));
+    }
+
+    /** Returns the hashes MESSAGE is indexed under: the whole message, and
+     *  each distinct word of it in lower case. */
+    private static Set<Long> terms(String message) {
+        Set<Long> terms = new LinkedHashSet<>();
+        terms.add(hash("=" + message));
+        for (String word : words(message)) {
+            terms.add(hash("w" + word));
+        }
+        return terms;
+    }
+
+    private static List<String> words(String text) {
+        List<String> words = new ArrayList<>();
+        for (String word : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+
+    /** Returns the 64-bit FNV-1a hash of the UTF-8 bytes of TERM. */
+    private static long hash(String term) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : term.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /** Returns every record of the current repository in log order, each
+     *  decoded only when it is reached. */
+    static Iterable<Record> records() {
+        if (!Repository.COMMIT_LOG.exists()) {
+            List<String> commitIds = Commit.allIds();
+            return () -> new Iterator<>() {
+                private final Iterator<String> ids = commitIds.iterator();
+
+                @Override
+                public boolean hasNext() {
+                    return ids.hasNext();
+                }
+
+                @Override
+                public Record next() {
+                    return Record.of(Commit.acquire(ids.next()));
+                }
+            };
+        }
+        ByteBuffer log = map(Repository.COMMIT_LOG);
+        if (log.capacity() < LOG_HEADER || log.getInt(0) != LOG_MAGIC) {
+            throw error("Corrupted commit log.");
+        }
+        return () -> new Iterator<>() {
+            private final ByteBuffer in = log.duplicate().position(LOG_HEADER);
+
+            @Override
+            public boolean hasNext() {
+                int offset = in.position();
+                return in.remaining() >= 12 && in.getInt(offset) == RECORD_MAGIC
+                        && in.getInt(offset + 4) >= 0
+                        && in.remaining() >= in.getInt(offset + 4) + 12;
+            }
+
+            @Override
+            public Record next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int offset = in.position();
+                in.position(offset + 8);
+                Record record = decode(in);
+                in.position(offset + 12 + in.getInt(offset + 4));
+                return record;
+            }
+        };
+    }
+
+    /** Returns the ids of the commits whose message is MESSAGE. */
+    static List<String> find(String message) {
+        return lookup(hash("=" + message), record -> record.message.equals(message));
+    }
+
+    /** Returns the ids of the commits whose message contains the word WORD,
+     *  ignoring case. */
+    static List<String> findWord(String word) {
+        String key = word.toLowerCase(Locale.ROOT);
+        return lookup(hash("w" + key), record -> words(record.message).contains(key));
+    }
+
+    /** Returns the ids of the records indexed under HASH that pass MATCHES,
+     *  which rules out hash collisions, in log order. */
+    private static List<String> lookup(long hash, Predicate<Record> matches) {
+        List<String> ids = new ArrayList<>();
+        if (!Repository.COMMIT_LOG.exists()) {
+            for (Record record : records()) {
+                if (matches.test(record)) {
+                    ids.add(record.id);
+                }
+            }
+            return ids;
+        }
+        TreeSet<Long> offsets = new TreeSet<>();
+        File index = Repository.MESSAGE_INDEX;
+        if (index.exists()) {
+            ByteBuffer sorted = map(index);
+            if (sorted.getInt(0) == INDEX_MAGIC) {
+                int count = (sorted.capacity() - INDEX_HEADER) / ENTRY_SIZE;
+                int low = 0;
+                int high = count;
+                while (low < high) {
+                    int mid = (low + high) >>> 1;
+                    if (sorted.getLong(INDEX_HEADER + mid * ENTRY_SIZE) < hash) {
+                        low = mid + 1;
+                    } else {
+                        high = mid;
+                    }
+                }
+                for (int i = low; i < count
+                        && sorted.getLong(INDEX_HEADER + i * ENTRY_SIZE) == hash; i += 1) {
+                    offsets.add(sorted.getLong(INDEX_HEADER + i * ENTRY_SIZE + 8));
+                }
+            }
+        }
+        for (long[] entry : journal()) {
+            if (entry[0] == hash) {
+                offsets.add(entry[1]);
+            }
+        }
+        try (FileChannel channel = FileChannel.open(Repository.COMMIT_LOG.toPath())) {
+            for (long offset : offsets) {
+                Record record = readRecord(channel, offset);
+                if (matches.test(record)) {
+                    ids.add(record.id);
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        for (Record record : tail(covered()).values()) {
+            if (matches.test(record)) {
+                ids.add(record.id);
+            }
+        }
+        return ids;
+    }
+
+    private static Record readRecord(FileChannel channel, long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(8);
+        channel.read(header, offset);
+        ByteBuffer payload = ByteBuffer.allocate(header.getInt(4));
+        channel.read(payload, offset + 8);
+        payload.flip();
+        return decode(payload);
+    }
+
+    private static ByteBuffer map(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+}
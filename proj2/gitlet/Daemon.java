@@ -0,0 +1,240 @@
+package gitlet;
+
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static gitlet.Utils.*;
+
+/** Serves the commands of one repository from a long-running process, so
+ *  repeated invocations skip JVM startup and keep the head, the index, the
+ *  commit graph and the object caches in memory.
+ *  The daemon listens on the Unix-domain socket .gitlet/daemon.sock and
+ *  runs one command at a time. A request is the argument count followed by
+ *  each argument; the reply is the output of the command followed by its
+ *  error output, each prefixed by its length.
+ *
+ *  Before each command the stat data of HEAD, the index, the remotes, the
+ *  refs, the commit-graph and the pack index is compared with that seen
+ *  after the previous command, and everything read from them is dropped if
+ *  another process changed any of them. The repository is locked for the
+ *  length of each command, as it is by a process running one directly.
+ */
+class Daemon {
+
+    /** Thrown in place of System.exit to end a command being served. */
+    static class Exit extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Exit() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final Set<String> REMOTE_COMMANDS = Set.of("fetch", "pull", "push");
+
+    private static boolean serving;
+
+    /** The stat data of the watched files after the previous command. */
+    private static HashMap<File, FileStat> watched;
+
+    static boolean isServing() {
+        return serving;
+    }
+
+    private static File socket() {
+        return join(Repository.GITLET_DIR, "daemon.sock");
+    }
+
+    /** Serve commands for the current repository until killed. */
+    static void serve() {
+        if (serving) {
+            Repository.error("A daemon is already running.");
+        }
+        File socket = socket();
+        UnixDomainSocketAddress address = UnixDomainSocketAddress.of(socket.toPath());
+        if (socket.exists()) {
+            boolean running;
+            try {
+                SocketChannel.open(address).close();
+                running = true;
+            } catch (IOException excp) {
+                running = false;
+                socket.delete();
+            }
+            if (running) {
+                Repository.error("A daemon is already running.");
+            }
+        }
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(address);
+            socket.deleteOnExit();
+            serving = true;
+            watched = watch();
+            while (true) {
+                try (SocketChannel client = server.accept()) {
+                    handle(client);
+                } catch (IOException excp) {
+                    invalidate();
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static void handle(SocketChannel client) throws IOException {
+        DataInputStream request = new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(client)));
+        String[] args = new String[request.readInt()];
+        for (int i = 0; i < args.length; i += 1) {
+            args[i] = request.readUTF();
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        PrintStream stderr = System.err;
+        System.setOut(new PrintStream(out, true));
+        System.setErr(new PrintStream(err, true));
+        try {
+            run(args, stderr);
+        } finally {
+            System.setOut(stdout);
+            System.setErr(stderr);
+        }
+        DataOutputStream reply = new DataOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(client)));
+        reply.writeInt(out.size());
+        out.writeTo(reply);
+        reply.writeInt(err.size());
+        err.writeTo(reply);
+        reply.flush();
+    }
+
+    /** Run the command ARGS as Main would. Any state a failed command may
+     *  have left half updated is dropped, as is the state of other
+     *  repositories touched by remote commands. A command that fails
+     *  unexpectedly reports its message to the client, and its stack trace
+     *  goes to LOG, the error output of the daemon. */
+    private static void run(String[] args, PrintStream log) {
+        boolean stats = args.length > 0 && args[0].equals("--stats");
+        if (stats) {
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+        boolean completed = false;
+        try {
+            if (args.length > 0) {
+                Main.lock(args[0]);
+            }
+            Repository.changeRepository(Repository.GITLET_DIR);
+            if (!isUnchanged(watched, watch())) {
+                invalidate();
+            }
+            Main.run(args);
+            completed = true;
+        } catch (Exit excp) {
+            completed = false;
+        } catch (RuntimeException excp) {
+            System.out.println(Objects.isNull(excp.getMessage())
+                    ? excp.toString() : excp.getMessage());
+            excp.printStackTrace(log);
+        } finally {
+            if (!completed || (args.length > 0 && REMOTE_COMMANDS.contains(args[0]))) {
+                invalidate();
+            }
+            if (stats) {
+                System.err.println(ObjectCache.COMMITS.stats());
+                System.err.println(ObjectCache.BLOBS.stats());
+            }
+            Repository.changeRepository(Repository.GITLET_DIR);
+            watched = watch();
+            Lock.releaseAll();
+        }
+    }
+
+    /** Drop everything read from the current repository and the repositories
+     *  touched by remote commands. */
+    static void invalidate() {
+        Transaction.abort();
+        Gitlet.invalidate();
+        CommitGraph.clear();
+        Reachability.clear();
+        Pack.close();
+    }
+
+    /** Returns the stat data of each watched file of the current repository,
+     *  null for a missing one. */
+    private static HashMap<File, FileStat> watch() {
+        List<File> files = new ArrayList<>(List.of(Repository.HEAD, Repository.INDEX,
+                Repository.REMOTE, Repository.COMMIT_GRAPH, Repository.PACK_INDEX,
+                Repository.PACK_BITMAP));
+        try (Stream<Path> refs = Files.walk(Repository.REFS_DIR.toPath())) {
+            refs.filter(Files::isRegularFile).forEach(path -> files.add(path.toFile()));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        HashMap<File, FileStat> stats = new HashMap<>();
+        for (File file : files) {
+            stats.put(file, FileStat.of(file, null));
+        }
+        return stats;
+    }
+
+    /** Returns whether every file in BEFORE is unchanged in AFTER. Stat data
+     *  taken while a file was racily clean does not prove it unchanged. */
+    private static boolean isUnchanged(HashMap<File, FileStat> before,
+                                       HashMap<File, FileStat> after) {
+        if (!before.keySet().equals(after.keySet())) {
+            return false;
+        }
+        for (Map.Entry<File, FileStat> entry : before.entrySet()) {
+            FileStat old = entry.getValue();
+            FileStat current = after.get(entry.getKey());
+            if (Objects.isNull(old) ? !Objects.isNull(current)
+                    : !(old.isCacheable() && old.matches(current))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Run ARGS in the daemon of the current repository and copy its output.
+     *  Returns false if no daemon is listening. */
+    static boolean forward(String[] args) {
+        File socket = socket();
+        if (!socket.exists()) {
+            return false;
+        }
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(socket.toPath()));
+        } catch (IOException excp) {
+            return false;
+        }
+        try (channel) {
+            DataOutputStream request = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel)));
+            request.writeInt(args.length);
+            for (String arg : args) {
+                request.writeUTF(arg);
+            }
+            request.flush();
+            DataInputStream reply = new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(channel)));
+            System.out.writeBytes(reply.readNBytes(reply.readInt()));
+            System.out.flush();
+            System.err.writeBytes(reply.readNBytes(reply.readInt()));
+            System.err.flush();
+            return true;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+import static gitlet.Utils.*;
+
+/** Encodes a blob as copy and insert instructions against a base blob.
+ *  Delta: target length, then instructions, each either
+ *  COPY (offset, length) from the base or INSERT (length, bytes).
+ *  All numbers are unsigned varints.
+ */
+class Delta {
+
+    private static final int COPY = 0;
+    private static final int INSERT = 1;
+
+    /** The length of base blocks indexed for matching. */
+    private static final int BLOCK = 16;
+
+    static byte[] encode(byte[] base, byte[] target) {
+        HashMap<Integer, Integer> blocks = new HashMap<>();
+        for (int i = 0; i + BLOCK <= base.length; i += BLOCK) {
+            blocks.putIfAbsent(hash(base, i), i);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarint(out, target.length);
+        int insertStart = 0;
+        int i = 0;
+        while (i + BLOCK <= target.length) {
+            Integer offset = blocks.get(hash(target, i));
+            int length = 0;
+            if (offset != null) {
+                while (offset + length < base.length && i + length < target.length
+                        && base[offset + length] == target[i + length]) {
+                    length += 1;
+                }
+            }
+            if (length < BLOCK) {
+                i += 1;
+                continue;
+            }
+            writeInsert(out, target, insertStart, i);
+            out.write(COPY);
+            writeVarint(out, offset);
+            writeVarint(out, length);
+            i += length;
+            insertStart = i;
+        }
+        writeInsert(out, target, insertStart, target.length);
+        return out.toByteArray();
+    }
+
+    static byte[] apply(byte[] base, byte[] delta) {
+        ByteBuffer in = ByteBuffer.wrap(delta);
+        byte[] target = new byte[(int) readVarint(in)];
+        int written = 0;
+        while (in.hasRemaining()) {
+            int op = in.get();
+            if (op == COPY) {
+                int offset = (int) readVarint(in);
+                int length = (int) readVarint(in);
+                System.arraycopy(base, offset, target, written, length);
+                written += length;
+            } else if (op == INSERT) {
+                int length = (int) readVarint(in);
+                in.get(target, written, length);
+                written += length;
+            } else {
+                throw error("Corrupted delta.");
+            }
+        }
+        if (written != target.length) {
+            throw error("Corrupted delta.");
+        }
+        return target;
+    }
+
+    private static int hash(byte[] bytes, int start) {
+        int result = 1;
+        for (int i = start; i < start + BLOCK; i += 1) {
+            result = 31 * result + bytes[i];
+        }
+        return result;
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, byte[] target, int start, int end) {
+        if (end > start) {
+            out.write(INSERT);
+            writeVarint(out, end - start);
+            out.write(target, start, end - start);
+        }
+    }
+}
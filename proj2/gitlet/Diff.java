@@ -0,0 +1,264 @@
+package gitlet;
+
+import java.util.*;
+
+/** Computes a shortest line diff between two texts with the linear space
+ *  variant of Myers' algorithm, in O((N + M) * D) time for texts of N and M
+ *  lines that differ in D lines.
+ *  Lines are numbered by content first, so the search compares ints. The
+ *  search finds the middle snake of the edit graph by walking forward from
+ *  the start and backward from the end at once, then recurses on the two
+ *  halves around it, so it only keeps two diagonal vectors. Common leading
+ *  and trailing lines are stripped before each search.
+ *  The edits are grouped into the hunks of a unified diff lazily, so a
+ *  caller prints each hunk from the line lists it already holds.
+ */
+class Diff {
+
+    /** Represents the replacement of lines [baseStart, baseEnd) of the old
+     *  text by lines [start, end) of the new one. An insertion has an empty
+     *  old range and a deletion an empty new range. */
+    static class Edit {
+        final int baseStart;
+        final int baseEnd;
+        final int start;
+        final int end;
+
+        Edit(int baseStart, int baseEnd, int start, int end) {
+            this.baseStart = baseStart;
+            this.baseEnd = baseEnd;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /** Represents lines [baseStart, baseEnd) of the old text and [start,
+     *  end) of the new one around EDITS, with the unchanged lines between
+     *  and around them. */
+    static class Hunk {
+        final int baseStart;
+        final int baseEnd;
+        final int start;
+        final int end;
+        final List<Edit> edits;
+
+        Hunk(int baseStart, int baseEnd, int start, int end, List<Edit> edits) {
+            this.baseStart = baseStart;
+            this.baseEnd = baseEnd;
+            this.start = start;
+            this.end = end;
+            this.edits = edits;
+        }
+    }
+
+    private final int[] a;
+    private final int[] b;
+    private final boolean[] deleted;
+    private final boolean[] inserted;
+
+    /** Forward and backward furthest reaching x per diagonal, reused by
+     *  every middle snake search. */
+    private final int[] forward;
+    private final int[] backward;
+
+    private Diff(int[] a, int[] b) {
+        this.a = a;
+        this.b = b;
+        this.deleted = new boolean[a.length];
+        this.inserted = new boolean[b.length];
+        int size = a.length + b.length + 2;
+        this.forward = new int[2 * size];
+        this.backward = new int[2 * size];
+    }
+
+    /** Returns the lines of TEXT, each with its line terminator. */
+    static List<String> lines(String text) {
+        List<String> lines = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < text.length(); i += 1) {
+            if (text.charAt(i) == '\n') {
+                lines.add(text.substring(start, i + 1));
+                start = i + 1;
+            }
+        }
+        if (start < text.length()) {
+            lines.add(text.substring(start));
+        }
+        return lines;
+    }
+
+    /** Returns the edits turning the lines BASE into the lines OTHER, in
+     *  order, separated by at least one unchanged line. */
+    static List<Edit> diff(List<String> base, List<String> other) {
+        HashMap<String, Integer> numbers = new HashMap<>();
+        return diff(number(base, numbers), number(other, numbers));
+    }
+
+    /** Returns the lines of TEXT numbered by content in NUMBERS. */
+    static int[] number(List<String> text, HashMap<String, Integer> numbers) {
+        int[] result = new int[text.size()];
+        for (int i = 0; i < result.length; i += 1) {
+            result[i] = numbers.computeIfAbsent(text.get(i), k -> numbers.size());
+        }
+        return result;
+    }
+
+    /** Returns the edits turning line numbers A into line numbers B. */
+    static List<Edit> diff(int[] a, int[] b) {
+        Diff diff = new Diff(a, b);
+        diff.compare(0, a.length, 0, b.length);
+        List<Edit> edits = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (i < a.length || j < b.length) {
+            if (i < a.length && j < b.length && !diff.deleted[i] && !diff.inserted[j]) {
+                i += 1;
+                j += 1;
+                continue;
+            }
+            int baseStart = i;
+            int start = j;
+            while (i < a.length && diff.deleted[i]) {
+                i += 1;
+            }
+            while (j < b.length && diff.inserted[j]) {
+                j += 1;
+            }
+            edits.add(new Edit(baseStart, i, start, j));
+        }
+        return edits;
+    }
+
+    /** Returns the hunks of EDITS against an old text of BASESIZE lines,
+     *  each with up to CONTEXT unchanged lines on either side, built one at
+     *  a time as the iterator advances. Edits at most two contexts apart
+     *  share a hunk. */
+    static Iterator<Hunk> hunks(List<Edit> edits, int baseSize, int context) {
+        return new Iterator<>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < edits.size();
+            }
+
+            @Override
+            public Hunk next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int first = next;
+                next += 1;
+                while (next < edits.size()
+                        && edits.get(next).baseStart - edits.get(next - 1).baseEnd
+                            <= 2 * context) {
+                    next += 1;
+                }
+                Edit start = edits.get(first);
+                Edit end = edits.get(next - 1);
+                int baseStart = Math.max(0, start.baseStart - context);
+                int baseEnd = Math.min(baseSize, end.baseEnd + context);
+                return new Hunk(baseStart, baseEnd, start.start - (start.baseStart - baseStart),
+                        end.end + (baseEnd - end.baseEnd), edits.subList(first, next));
+            }
+        };
+    }
+
+    /** Mark the lines of A[aLo, aHi) and B[bLo, bHi) outside a longest
+     *  common subsequence of the two as deleted and inserted. */
+    private void compare(int aLo, int aHi, int bLo, int bHi) {
+        while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+            aLo += 1;
+            bLo += 1;
+        }
+        while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+            aHi -= 1;
+            bHi -= 1;
+        }
+        if (aLo == aHi || bLo == bHi) {
+            Arrays.fill(deleted, aLo, aHi, true);
+            Arrays.fill(inserted, bLo, bHi, true);
+            return;
+        }
+        long split = middleSnake(aLo, aHi, bLo, bHi);
+        if (split < 0) {
+            Arrays.fill(deleted, aLo, aHi, true);
+            Arrays.fill(inserted, bLo, bHi, true);
+            return;
+        }
+        int x = aLo + (int) (split >>> 32);
+        int y = bLo + (int) split;
+        compare(aLo, x, bLo, y);
+        compare(x, aHi, y, bHi);
+    }
+
+    /** Returns a point (x, y), packed as x << 32 | y and relative to
+     *  (ALO, BLO), on a middle snake of the edit graph of A[aLo, aHi) and
+     *  B[bLo, bHi), or -1 if the two share no line. */
+    private long middleSnake(int aLo, int aHi, int bLo, int bHi) {
+        int n = aHi - aLo;
+        int m = bHi - bLo;
+        int maxD = (n + m + 1) / 2;
+        int offset = maxD + 1;
+        Arrays.fill(forward, 0, 2 * offset + 2, -1);
+        Arrays.fill(backward, 0, 2 * offset + 2, -1);
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        int kStart = 0;
+        int kEnd = 0;
+        int rStart = 0;
+        int rEnd = 0;
+        for (int d = 0; d < maxD; d += 1) {
+            for (int k = -d + kStart; k <= d - kEnd; k += 2) {
+                int index = offset + k;
+                int x = (k == -d || (k != d && forward[index - 1] < forward[index + 1]))
+                        ? forward[index + 1] : forward[index - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && a[aLo + x] == b[bLo + y]) {
+                    x += 1;
+                    y += 1;
+                }
+                forward[index] = x;
+                if (x > n) {
+                    kEnd += 2;
+                } else if (y > m) {
+                    kStart += 2;
+                } else if (odd) {
+                    int reverse = offset + delta - k;
+                    if (reverse >= 0 && reverse < 2 * offset && backward[reverse] != -1
+                            && x >= n - backward[reverse]) {
+                        return (long) x << 32 | y;
+                    }
+                }
+            }
+            for (int k = -d + rStart; k <= d - rEnd; k += 2) {
+                int index = offset + k;
+                int x = (k == -d || (k != d && backward[index - 1] < backward[index + 1]))
+                        ? backward[index + 1] : backward[index - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && a[aHi - x - 1] == b[bHi - y - 1]) {
+                    x += 1;
+                    y += 1;
+                }
+                backward[index] = x;
+                if (x > n) {
+                    rEnd += 2;
+                } else if (y > m) {
+                    rStart += 2;
+                } else if (!odd) {
+                    int front = offset + delta - k;
+                    if (front >= 0 && front < 2 * offset && forward[front] != -1) {
+                        int fx = forward[front];
+                        int fy = offset + fx - front;
+                        if (fx >= n - x) {
+                            return (long) fx << 32 | fy;
+                        }
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,53 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+
+/** Represents the stat data of a working file as recorded in the index,
+ *  together with the blob id its content hashed to at that time. A file
+ *  whose modification time, size and inode still match is not hashed again.
+ */
+class FileStat {
+
+    /** Files modified this recently may change again within the same
+     *  timestamp granularity, so they are never trusted from the cache. */
+    private static final long RACY_MILLIS = 2000;
+
+    final long modified;
+    final long size;
+    final long inode;
+    final String blobId;
+
+    FileStat(long modified, long size, long inode, String blobId) {
+        this.modified = modified;
+        this.size = size;
+        this.inode = inode;
+        this.blobId = blobId;
+    }
+
+    /** Returns the stat data of FILE with BLOBID, or null if FILE is missing. */
+    static FileStat of(File file, String blobId) {
+        try {
+            BasicFileAttributes attributes =
+                    Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            return new FileStat(attributes.lastModifiedTime().toMillis(), attributes.size(),
+                    Objects.hashCode(attributes.fileKey()), blobId);
+        } catch (IOException excp) {
+            return null;
+        }
+    }
+
+    /** Returns whether CURRENT describes the same file content as this. */
+    boolean matches(FileStat current) {
+        return !Objects.isNull(current) && current.modified == modified
+                && current.size == size && current.inode == inode;
+    }
+
+    /** Returns whether this stat data is old enough to be cached. */
+    boolean isCacheable() {
+        return System.currentTimeMillis() - modified >= RACY_MILLIS;
+    }
+}
@@ -1,7 +1,18 @@
 package gitlet;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static gitlet.Utils.*;
 
@@ -11,6 +22,15 @@ class Gitlet {
 
     static HashMap<String, String> staging;
 
+    /** The stat data of tracked working files, stored in the index. */
+    static HashMap<String, FileStat> statCache;
+
+    /** Whether statCache has entries not yet written to the index. */
+    static boolean statChanged;
+
+    /** The index as last read, to tell whether another process wrote it. */
+    private static byte[] indexBytes;
+
     static HashMap<String, String> remoteRepository;
 
     static String currentBranch;
@@ -27,11 +47,30 @@ class Gitlet {
 
     static final String STAGED_REMOVAL = "00";
 
+    private static final byte[] INDEX_MAGIC = {'G', 'I', 'X', 1};
+
+    private static final byte[] REMOTE_MAGIC = {'G', 'R', 'M', 1};
+
+    /** The number of threads hashing working files, set with the
+     *  gitlet.parallelism system property. */
+    static final int PARALLELISM = Integer.getInteger("gitlet.parallelism",
+            Runtime.getRuntime().availableProcessors());
+
+    /** The threads hashing working files, started on first use and kept
+     *  for later commands, as a daemon runs many. */
+    private static ForkJoinPool hashPool;
+
     static {
         cachedArray = new Boolean[CACHESIZE];
         Arrays.fill(cachedArray, false);
     }
 
+    /** Drop everything read from HEAD, the index, the refs and the remotes. */
+    static void invalidate() {
+        Arrays.fill(cachedArray, false);
+        statCache = null;
+    }
+
     static boolean isCached(int index) {
         return cachedArray[index];
     }
@@ -39,10 +78,10 @@ class Gitlet {
     static String getCurrentBranch() {
         if (!isCached(BRANCH_INDEX)) {
             File head = Repository.HEAD;
-            if (!head.exists()) {
+            if (!Transaction.exists(head)) {
                 return null;
             }
-            String name = Utils.readContentsAsString(head);
+            String name = Transaction.readString(head);
             currentBranch = name;
             cachedArray[BRANCH_INDEX] = true;
         }
@@ -51,7 +90,7 @@ class Gitlet {
 
     static void updateBranch(String branchName) {
         File head = Repository.HEAD;
-        Utils.writeContents(head, branchName);
+        Transaction.write(head, branchName);
         cachedArray[BRANCH_INDEX] = false;
     }
 
@@ -62,7 +101,7 @@ class Gitlet {
                 return null;
             }
             File branch = getBranch(branchName);
-            if (!branch.exists()) {
+            if (!Transaction.exists(branch)) {
                 return null;
             }
             Commit commit = getBranchCommit(branch);
@@ -75,43 +114,194 @@ class Gitlet {
     static void updateHeadCommit(String commitId) {
         String branchName = getCurrentBranch();
         File branch = getBranch(branchName);
-        Utils.writeContents(branch, commitId);
+        Transaction.write(branch, commitId);
         cachedArray[COMMIT_INDEX] = false;
     }
 
     static HashMap<String, String> getStagingArea() {
         if (!isCached(STAGING_INDEX)) {
             File index = Repository.INDEX;
-            if (!index.exists()) {
+            if (!Transaction.exists(index)) {
                 return null;
             }
-            HashMap<String, String> map = Utils.readObject(index, HashMap.class);
-            staging = map;
+            readIndex(Transaction.read(index));
             cachedArray[STAGING_INDEX] = true;
         }
         return staging;
     }
 
+    /** Load the staging area and stat cache from the index BYTES. Indexes
+     *  written before the stat cache hold a serialized staging map. */
+    @SuppressWarnings("unchecked")
+    private static void readIndex(byte[] bytes) {
+        indexBytes = bytes;
+        statCache = new HashMap<>();
+        statChanged = false;
+        if (!Arrays.equals(bytes, 0, INDEX_MAGIC.length, INDEX_MAGIC, 0, INDEX_MAGIC.length)) {
+            staging = Utils.deserialize(bytes, HashMap.class);
+            return;
+        }
+        ByteBuffer in = ByteBuffer.wrap(bytes, INDEX_MAGIC.length, bytes.length - INDEX_MAGIC.length);
+        staging = new HashMap<>();
+        for (long i = readVarint(in); i > 0; i -= 1) {
+            staging.put(readString(in), readString(in));
+        }
+        for (long i = readVarint(in); i > 0; i -= 1) {
+            String name = readString(in);
+            long modified = in.getLong();
+            long size = readVarint(in);
+            long inode = in.getLong();
+            statCache.put(name, new FileStat(modified, size, inode, readId(in)));
+        }
+    }
+
     static void updateStagingArea(HashMap<String, String> stagingArea) {
-        Utils.writeObject(Repository.INDEX, stagingArea);
+        if (Objects.isNull(statCache)) {
+            statCache = new HashMap<>();
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(INDEX_MAGIC);
+        writeVarint(out, stagingArea.size());
+        for (Map.Entry<String, String> entry : stagingArea.entrySet()) {
+            writeString(out, entry.getKey());
+            writeString(out, entry.getValue());
+        }
+        writeVarint(out, statCache.size());
+        for (Map.Entry<String, FileStat> entry : statCache.entrySet()) {
+            FileStat stat = entry.getValue();
+            writeString(out, entry.getKey());
+            out.writeBytes(ByteBuffer.allocate(8).putLong(stat.modified).array());
+            writeVarint(out, stat.size);
+            out.writeBytes(ByteBuffer.allocate(8).putLong(stat.inode).array());
+            writeId(out, stat.blobId);
+        }
+        Transaction.write(Repository.INDEX, out.toByteArray());
         cachedArray[STAGING_INDEX] = false;
     }
 
+    /** Returns the blob ids of the existing working files among FILENAMES,
+     *  in name order. A file is only hashed when its stat data differs from
+     *  the stat cache, and the hashing is spread over PARALLELISM threads.
+     *  Results are cached unless the file is racily clean. */
+    static TreeMap<String, String> hashFiles(Collection<String> fileNames) {
+        getStagingArea();
+        TreeMap<String, String> hashes = new TreeMap<>();
+        TreeMap<String, FileStat> pending = new TreeMap<>();
+        for (String fileName : fileNames) {
+            FileStat current = FileStat.of(join(Repository.CWD, fileName), null);
+            if (Objects.isNull(current)) {
+                continue;
+            }
+            FileStat cached = statCache.get(fileName);
+            if (!Objects.isNull(cached) && cached.matches(current)) {
+                hashes.put(fileName, cached.blobId);
+            } else {
+                pending.put(fileName, current);
+            }
+        }
+        List<String> blobIds = sha1All(pending.keySet());
+        Iterator<String> blobId = blobIds.iterator();
+        for (Map.Entry<String, FileStat> entry : pending.entrySet()) {
+            String fileName = entry.getKey();
+            FileStat current = entry.getValue();
+            FileStat hashed = new FileStat(current.modified, current.size,
+                    current.inode, blobId.next());
+            hashes.put(fileName, hashed.blobId);
+            if (hashed.isCacheable()) {
+                statCache.put(fileName, hashed);
+                statChanged = true;
+            } else if (!Objects.isNull(statCache.remove(fileName))) {
+                statChanged = true;
+            }
+        }
+        return hashes;
+    }
+
+    /** Returns the SHA-1 of each working file in FILENAMES, in order. */
+    private static List<String> sha1All(Collection<String> fileNames) {
+        List<Callable<String>> tasks = new ArrayList<>();
+        for (String fileName : fileNames) {
+            tasks.add(() -> sha1(join(Repository.CWD, fileName)));
+        }
+        List<String> blobIds = new ArrayList<>();
+        if (tasks.size() < 2 || PARALLELISM < 2) {
+            for (String fileName : fileNames) {
+                blobIds.add(sha1(join(Repository.CWD, fileName)));
+            }
+            return blobIds;
+        }
+        if (Objects.isNull(hashPool)) {
+            hashPool = new ForkJoinPool(PARALLELISM);
+        }
+        try {
+            for (Future<String> result : hashPool.invokeAll(tasks)) {
+                blobIds.add(result.get());
+            }
+        } catch (InterruptedException | ExecutionException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return blobIds;
+    }
+
+    /** Write the index if hashFiles cached new stat data. A command that
+     *  only reads the repository calls this once it has read everything
+     *  it needs, and writes the index only if it can then lock the
+     *  repository exclusively without waiting and no other process wrote
+     *  the index while the lock was free; otherwise the stat data is
+     *  dropped, and the command goes on without a lock. */
+    static void updateStatCache() {
+        if (!statChanged) {
+            return;
+        }
+        HashMap<String, String> stagingArea = getStagingArea();
+        if (Lock.isShared(Repository.GITLET_DIR)) {
+            if (!Lock.tryExclusive(Repository.GITLET_DIR)) {
+                return;
+            }
+            Transaction.recover();
+            if (!Arrays.equals(readContents(Repository.INDEX), indexBytes)) {
+                return;
+            }
+        }
+        updateStagingArea(stagingArea);
+    }
+
+    /** Returns the address of each remote by name. The remote file holds
+     *  magic, the remote count, then each name and address; remote files
+     *  written before hold a serialized map. */
+    @SuppressWarnings("unchecked")
     static HashMap<String, String> getRemoteInformation() {
         if (!isCached(REMOTE_INDEX)) {
             File remote = Repository.REMOTE;
-            if (!remote.exists()) {
+            if (!Transaction.exists(remote)) {
                 return new HashMap<>();
             }
-            HashMap<String, String> repository = Utils.readObject(remote, HashMap.class);
-            remoteRepository = repository;
+            byte[] bytes = Transaction.read(remote);
+            if (!Arrays.equals(bytes, 0, REMOTE_MAGIC.length,
+                    REMOTE_MAGIC, 0, REMOTE_MAGIC.length)) {
+                remoteRepository = Utils.deserialize(bytes, HashMap.class);
+            } else {
+                ByteBuffer in = ByteBuffer.wrap(bytes, REMOTE_MAGIC.length,
+                        bytes.length - REMOTE_MAGIC.length);
+                remoteRepository = new HashMap<>();
+                for (long i = readVarint(in); i > 0; i -= 1) {
+                    remoteRepository.put(readString(in), readString(in));
+                }
+            }
             cachedArray[REMOTE_INDEX] = true;
         }
         return remoteRepository;
     }
 
     static void updateRemoteInformation(HashMap<String, String> repository) {
-        Utils.writeObject(Repository.REMOTE, repository);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(REMOTE_MAGIC);
+        writeVarint(out, repository.size());
+        for (Map.Entry<String, String> entry : repository.entrySet()) {
+            writeString(out, entry.getKey());
+            writeString(out, entry.getValue());
+        }
+        Transaction.write(Repository.REMOTE, out.toByteArray());
         cachedArray[REMOTE_INDEX] = false;
     }
 
@@ -124,39 +314,118 @@ class Gitlet {
 
     static Set<String> getUntrackedFiles() {
         Set<String> untrackedFiles = new TreeSet<>();
-        untrackedFiles.addAll(plainFilenamesIn(Repository.CWD));
+        untrackedFiles.addAll(getWorkingFiles());
         untrackedFiles.removeAll(getTrackedFiles());
         return untrackedFiles;
     }
 
+    /** Returns the paths of all plain files under CWD outside .gitlet,
+     *  relative to CWD with '/' separators, in sorted order. */
+    static List<String> getWorkingFiles() {
+        Path root = Repository.CWD.toPath();
+        try (Stream<Path> paths = Files.walk(root)) {
+            return paths.filter(path -> !path.startsWith(Repository.GITLET_DIR.toPath()))
+                    .filter(Files::isRegularFile)
+                    .map(path -> root.relativize(path).toString().replace(File.separatorChar, '/'))
+                    .sorted()
+                    .collect(Collectors.toList());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Delete working file FILENAME and the directories it leaves empty. */
+    static void deleteWorkingFile(String fileName) {
+        File file = join(Repository.CWD, fileName);
+        if (file.isDirectory() || !file.delete()) {
+            return;
+        }
+        File parent = file.getParentFile();
+        while (!parent.equals(Repository.CWD) && parent.delete()) {
+            parent = parent.getParentFile();
+        }
+    }
+
+    /** Returns whether NAME can name a branch or remote on its own: letters,
+     *  digits, '.', '_' and '-', not starting with '.' or '-' and without
+     *  "..". Names from other repositories or the command line are checked
+     *  with this before getBranch, so they cannot lead outside the refs. */
+    static boolean isRefName(String name) {
+        return name.matches("[A-Za-z0-9_][A-Za-z0-9._-]*") && !name.contains("..");
+    }
+
     static File getBranch(String branchName) {
         return branchName.contains("/")
                 ? join(Repository.REMOTES, branchName) : join(Repository.LOCAL, branchName);
     }
 
     static Commit getBranchCommit(File branch) {
-        return Commit.acquire(Utils.readContentsAsString(branch));
+        return Commit.acquire(Transaction.readString(branch));
     }
 
-    static void fetchSnapShots(Commit commit, HashSet<Commit> fetchCommits,
-                               HashMap<String, String> fetchBlobs) {
-        fetchCommits.add(commit);
-        for (String fileName : commit.getAll()) {
-            String blobId = commit.get(fileName);
-            fetchBlobs.put(blobId, Blob.content(blobId));
+    /** The unchanged lines shown around each change by printFileDiff. */
+    static final int DIFF_CONTEXT = 3;
+
+    /** Print the unified diff of file PATH from OLDTEXT to NEWTEXT, either of
+     *  which is null when the file is missing on that side. */
+    static void printFileDiff(String path, String oldText, String newText) {
+        StringBuilder out = new StringBuilder();
+        out.append("diff --git a/").append(path).append(" b/").append(path).append('\n');
+        if (Objects.isNull(oldText)) {
+            out.append("new file\n");
+        } else if (Objects.isNull(newText)) {
+            out.append("deleted file\n");
+        }
+        String oldName = Objects.isNull(oldText) ? "/dev/null" : "a/" + path;
+        String newName = Objects.isNull(newText) ? "/dev/null" : "b/" + path;
+        oldText = Objects.isNull(oldText) ? "" : oldText;
+        newText = Objects.isNull(newText) ? "" : newText;
+        if (oldText.indexOf('\0') >= 0 || newText.indexOf('\0') >= 0) {
+            out.append("Binary files ").append(oldName).append(" and ").append(newName)
+                    .append(" differ\n");
+            System.out.print(out);
+            return;
+        }
+        out.append("--- ").append(oldName).append('\n');
+        out.append("+++ ").append(newName).append('\n');
+        System.out.print(out);
+        List<String> oldLines = Diff.lines(oldText);
+        List<String> newLines = Diff.lines(newText);
+        Iterator<Diff.Hunk> hunks = Diff.hunks(Diff.diff(oldLines, newLines),
+                oldLines.size(), DIFF_CONTEXT);
+        while (hunks.hasNext()) {
+            Diff.Hunk hunk = hunks.next();
+            out.setLength(0);
+            out.append("@@ -").append(range(hunk.baseStart, hunk.baseEnd))
+                    .append(" +").append(range(hunk.start, hunk.end)).append(" @@\n");
+            int position = hunk.baseStart;
+            for (Diff.Edit edit : hunk.edits) {
+                appendDiffLines(out, ' ', oldLines, position, edit.baseStart);
+                appendDiffLines(out, '-', oldLines, edit.baseStart, edit.baseEnd);
+                appendDiffLines(out, '+', newLines, edit.start, edit.end);
+                position = edit.baseEnd;
+            }
+            appendDiffLines(out, ' ', oldLines, position, hunk.baseEnd);
+            System.out.print(out);
         }
     }
 
-    static void pushSnapShots(HashSet<Commit> fetchCommits, HashMap<String, String> fetchBlobs) {
-        for (Commit remoteCommit : fetchCommits) {
-            String commitId = remoteCommit.getCommitId();
-            File commitFile = join(Repository.COMMITS_DIR, commitId);
-            if (!commitFile.exists()) {
-                writeObject(commitFile, remoteCommit);
-            }
+    /** Returns the unified diff range of lines [START, END). */
+    private static String range(int start, int end) {
+        if (end - start == 1) {
+            return String.valueOf(start + 1);
         }
-        for (String blobId : fetchBlobs.keySet()) {
-            Blob.blob(blobId, fetchBlobs.get(blobId));
+        return (end == start ? start : start + 1) + "," + (end - start);
+    }
+
+    private static void appendDiffLines(StringBuilder out, char prefix,
+                                        List<String> lines, int from, int to) {
+        for (int i = from; i < to; i += 1) {
+            String line = lines.get(i);
+            out.append(prefix).append(line);
+            if (!line.endsWith("\n")) {
+                out.append("\n\\ No newline at end of file\n");
+            }
         }
     }
 
@@ -172,19 +441,26 @@ class Gitlet {
         return conflictMessage.toString();
     }
 
+    static String formatDate(Date timeStamp) {
+        return String.format(Locale.ENGLISH,
+                "%1$ta %1$tb %1$te %1$tH:%1$tM:%1$tS %1$tY %1$tz", timeStamp);
+    }
+
     public static void makeCommitMessage(MessageBuilder builder, Commit commit) {
-        String commId = commit.getCommitId();
-        String mergedId = commit.getMergedParentId();
+        makeCommitMessage(builder, commit.getCommitId(), commit.getMergedParentId(),
+                commit.getTimeStamp(), commit.getMessage());
+    }
+
+    static void makeCommitMessage(MessageBuilder builder, String commId, String mergedId,
+                                  Date timeStamp, String message) {
         builder.append("===");
         builder.append("commit " + commId);
         if (!Objects.isNull(mergedId)) {
             builder.append("Merge: " + commId.substring(0, 7)
                     + " " + mergedId.substring(0, 7));
         }
-        builder.append("Date: " + String.format(Locale.ENGLISH,
-                "%1$ta %1$tb %1$te %1$tH:%1$tM:%1$tS %1$tY %1$tz",
-                commit.getTimeStamp()));
-        builder.append(commit.getMessage());
+        builder.append("Date: " + formatDate(timeStamp));
+        builder.append(message);
         builder.appendRaw(System.getProperty("line.separator"));
     }
 
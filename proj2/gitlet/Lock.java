@@ -0,0 +1,180 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import static gitlet.Utils.*;
+
+/** Serializes the gitlet processes using a repository through an operating
+ *  system lock on its .gitlet/lock file. Commands that only read share the
+ *  lock, so they run in parallel, while every other command holds it
+ *  exclusively. A remote repository is locked the same way for the length
+ *  of a fetch or push.
+ *
+ *  The operating system drops the lock when its holder exits, so it never
+ *  outlives a crash. An exclusive holder writes its process id into the
+ *  file and empties it on release, so a process id found by the next holder
+ *  marks a stale lock left by a writer that died. That holder takes the
+ *  lock exclusively, so the journal is replayed by one process alone, and
+ *  removes the temporary files the dead writer may have left. A process
+ *  that cannot take the lock within gitlet.lockTimeout milliseconds fails
+ *  and names the holder.
+ */
+class Lock {
+
+    /** How long to wait for another process to release the lock, set with
+     *  the gitlet.lockTimeout system property. */
+    static final long TIMEOUT = Long.getLong("gitlet.lockTimeout", 10000);
+
+    private static final long POLL_MILLIS = 20;
+
+    /** The files, relative to a repository, written before being renamed. */
+    private static final String[] TEMPORARY =
+            {"journal.tmp", "commit-ids.tmp", "commit.tmp", "commit-log.tmp",
+                "message-index.tmp", "commit-graph.tmp", "pack/objects.idx.tmp",
+                "pack/objects.bitmap.tmp"};
+
+    /** The locks held by this process, by canonical repository directory. */
+    private static final HashMap<File, FileLock> HELD = new HashMap<>();
+
+    private static boolean hooked;
+
+    /** Lock REPOSITORY, shared unless EXCLUSIVE, waiting for other processes
+     *  up to TIMEOUT. An exclusive lock already held also serves a shared
+     *  request; a shared one is given up and taken again exclusively. */
+    static void acquire(File repository, boolean exclusive) {
+        File directory = canonical(repository);
+        FileLock held = HELD.get(directory);
+        if (!Objects.isNull(held)) {
+            if (!(exclusive && held.isShared())) {
+                return;
+            }
+            release(directory);
+        }
+        if (!hooked) {
+            Runtime.getRuntime().addShutdownHook(new Thread(Lock::releaseAll));
+            hooked = true;
+        }
+        try {
+            FileChannel channel = FileChannel.open(join(directory, "lock").toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            FileLock lock = wait(channel, exclusive);
+            if (lock.isShared() && channel.size() > 0) {
+                lock.release();
+                lock = wait(channel, true);
+            }
+            if (!lock.isShared()) {
+                claim(directory, channel);
+            }
+            HELD.put(directory, lock);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Mark the lock file CHANNEL of DIRECTORY, just locked exclusively, as
+     *  held by this process, first removing what a dead writer left. */
+    private static void claim(File directory, FileChannel channel) throws IOException {
+        if (channel.size() > 0) {
+            for (String name : TEMPORARY) {
+                join(directory, name).delete();
+            }
+        }
+        channel.truncate(0);
+        channel.write(ByteBuffer.wrap(String.valueOf(ProcessHandle.current().pid())
+                .getBytes(StandardCharsets.UTF_8)), 0);
+    }
+
+    /** Trade the shared lock this process holds on REPOSITORY, once it has
+     *  read all it needs, for an exclusive one if no other process holds
+     *  the repository, without waiting. Returns whether the lock is now
+     *  exclusive; otherwise none is held. Another process may have written
+     *  the repository in between either way. */
+    static boolean tryExclusive(File repository) {
+        File directory = canonical(repository);
+        FileLock held = HELD.get(directory);
+        if (Objects.isNull(held) || !held.isShared()) {
+            return !Objects.isNull(held);
+        }
+        FileChannel channel = held.channel();
+        HELD.remove(directory);
+        try {
+            held.release();
+            FileLock lock = channel.tryLock(0, Long.MAX_VALUE, false);
+            if (Objects.isNull(lock)) {
+                channel.close();
+                return false;
+            }
+            claim(directory, channel);
+            HELD.put(directory, lock);
+            return true;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns the lock on CHANNEL once it is free, or ends the command
+     *  after TIMEOUT. */
+    private static FileLock wait(FileChannel channel, boolean exclusive) throws IOException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        FileLock lock = channel.tryLock(0, Long.MAX_VALUE, !exclusive);
+        while (Objects.isNull(lock)) {
+            if (System.currentTimeMillis() > deadline) {
+                ByteBuffer holder = ByteBuffer.allocate((int) Math.min(channel.size(), 32));
+                channel.read(holder, 0);
+                channel.close();
+                String pid = new String(holder.array(), 0, holder.position(),
+                        StandardCharsets.UTF_8);
+                Repository.error("The repository is locked by another gitlet process"
+                        + (pid.isEmpty() ? "." : " (" + pid + ")."));
+            }
+            try {
+                Thread.sleep(POLL_MILLIS);
+            } catch (InterruptedException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            lock = channel.tryLock(0, Long.MAX_VALUE, !exclusive);
+        }
+        return lock;
+    }
+
+    /** Returns whether this process holds REPOSITORY only for reading. */
+    static boolean isShared(File repository) {
+        FileLock held = HELD.get(canonical(repository));
+        return !Objects.isNull(held) && held.isShared();
+    }
+
+    /** Release every lock this process holds. */
+    static void releaseAll() {
+        for (File directory : new ArrayList<>(HELD.keySet())) {
+            release(directory);
+        }
+    }
+
+    private static void release(File directory) {
+        FileLock lock = HELD.remove(directory);
+        try (FileChannel channel = lock.channel()) {
+            if (!lock.isShared()) {
+                channel.truncate(0);
+            }
+            lock.release();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static File canonical(File repository) {
+        try {
+            return repository.getCanonicalFile();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+}
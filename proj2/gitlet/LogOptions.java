@@ -0,0 +1,147 @@
+package gitlet;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
+import java.util.Objects;
+
+/** Represents the options of log and global-log, which print each commit as
+ *  soon as it is read:
+ *    -n COUNT        print at most COUNT commits.
+ *    --since DATE    skip commits older than DATE, given as yyyy-MM-dd,
+ *                    yyyy-MM-ddTHH:mm:ss or with an offset as well.
+ *    --format FORMAT print each commit as FORMAT, where %H is the id, %h
+ *                    the abbreviated id, %d the date, %s the message, %n
+ *                    a newline and %% a percent sign. 'oneline' is "%h %s".
+ */
+class LogOptions {
+
+    /** The number of commits older than --since that a history walk reads
+     *  in a row before it stops, allowing for skewed clocks. */
+    static final int SINCE_SLOP = 5;
+
+    private int remaining = Integer.MAX_VALUE;
+
+    private Date since;
+
+    private String format;
+
+    /** The commits older than since read in a row. */
+    private int older;
+
+    /** Returns the options given in ARGS after the command name. */
+    static LogOptions parse(String[] args) {
+        LogOptions options = new LogOptions();
+        for (int i = 1; i < args.length; i += 2) {
+            if (i + 1 == args.length) {
+                Repository.error("Incorrect operands.");
+            }
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "-n":
+                    try {
+                        options.remaining = Integer.parseInt(value);
+                    } catch (NumberFormatException excp) {
+                        Repository.error("Incorrect operands.");
+                    }
+                    break;
+                case "--since":
+                    options.since = parseDate(value);
+                    break;
+                case "--format":
+                    options.format = value.equals("oneline") ? "%h %s" : value;
+                    break;
+                default:
+                    Repository.error("Incorrect operands.");
+            }
+        }
+        return options;
+    }
+
+    private static Date parseDate(String value) {
+        try {
+            return Date.from(OffsetDateTime.parse(value).toInstant());
+        } catch (DateTimeParseException excp) {
+            try {
+                return Date.from(LocalDateTime.parse(value)
+                        .atZone(ZoneId.systemDefault()).toInstant());
+            } catch (DateTimeParseException excp2) {
+                try {
+                    return Date.from(LocalDate.parse(value)
+                            .atStartOfDay(ZoneId.systemDefault()).toInstant());
+                } catch (DateTimeParseException excp3) {
+                    Repository.error("Incorrect date.");
+                    return null;
+                }
+            }
+        }
+    }
+
+    /** Returns whether more commits are to be printed. */
+    boolean isOpen() {
+        return remaining > 0;
+    }
+
+    /** Returns whether a history walk should stop, having read SINCE_SLOP
+     *  commits in a row older than since. */
+    boolean isPastSince() {
+        return older >= SINCE_SLOP;
+    }
+
+    /** Print the commit COMMID dated TIMESTAMP with MESSAGE and merged parent
+     *  MERGEDID, unless it is older than since, and flush it to the output. */
+    void print(String commId, String mergedId, Date timeStamp, String message) {
+        if (!Objects.isNull(since) && timeStamp.before(since)) {
+            older += 1;
+            return;
+        }
+        older = 0;
+        remaining -= 1;
+        MessageBuilder builder = new MessageBuilder();
+        if (Objects.isNull(format)) {
+            Gitlet.makeCommitMessage(builder, commId, mergedId, timeStamp, message);
+        } else {
+            builder.append(expand(commId, timeStamp, message));
+        }
+        System.out.print(builder);
+        System.out.flush();
+    }
+
+    private String expand(String commId, Date timeStamp, String message) {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < format.length(); i += 1) {
+            char c = format.charAt(i);
+            if (c != '%' || i + 1 == format.length()) {
+                out.append(c);
+                continue;
+            }
+            i += 1;
+            switch (format.charAt(i)) {
+                case 'H':
+                    out.append(commId);
+                    break;
+                case 'h':
+                    out.append(commId, 0, 7);
+                    break;
+                case 'd':
+                    out.append(Gitlet.formatDate(timeStamp));
+                    break;
+                case 's':
+                    out.append(message);
+                    break;
+                case 'n':
+                    out.append(System.getProperty("line.separator"));
+                    break;
+                case '%':
+                    out.append('%');
+                    break;
+                default:
+                    out.append('%').append(format.charAt(i));
+            }
+        }
+        return out.toString();
+    }
+}
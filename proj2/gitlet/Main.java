@@ -1,20 +1,48 @@
 package gitlet;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.Set;
 
 /** Driver class for Gitlet, a subset of the Git version-control system.
  */
 public class Main {
 
+    /** The commands that serve the repository until killed, which are not
+     *  forwarded to the daemon and take no lock of their own. */
+    static final Set<String> SERVERS = Set.of("daemon", "serve");
+
+    /** The commands that only read the repository, and so share its lock. */
+    static final Set<String> READERS = Set.of("log", "global-log", "find", "status",
+            "merge-base", "diff");
+
     /** Usage: java gitlet.Main ARGS, where ARGS contains
-     *  <COMMAND> <OPERAND1> <OPERAND2> ... 
+     *  [--stats] <COMMAND> <OPERAND1> <OPERAND2> ...
+     *  With --stats, object cache counters are printed to stderr on exit.
+     *  Commands are run by the daemon of the repository if one is running.
      */
     public static void main(String[] args) {
+        if (args.length > 0 && !SERVERS.contains(args[0]) && Daemon.forward(args)) {
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--stats")) {
+            args = Arrays.copyOfRange(args, 1, args.length);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                System.err.println(ObjectCache.COMMITS.stats());
+                System.err.println(ObjectCache.BLOBS.stats());
+            }));
+        }
+        run(args);
+    }
+
+    /** Run the command ARGS in the current process. */
+    static void run(String[] args) {
         if (args.length == 0) {
             Repository.error("Please enter a command.");
         }
         String firstArg = args[0];
+        lock(firstArg);
         Repository.changeRepository(Repository.GITLET_DIR);
         switch (firstArg) {
             case "init":
@@ -59,22 +87,60 @@ public class Main {
                 validateArgs(args, 2);
                 Repository.merge(args[1]);
                 break;
+            case "diff":
+                validateArgs(args, 1, 3);
+                Repository.diff(args.length > 1 ? args[1] : null,
+                        args.length > 2 ? args[2] : null);
+                break;
+            case "merge-base":
+                validateArgs(args, 3, 4);
+                if (args.length == 4 && !args[1].equals("--all")) {
+                    Repository.error("Incorrect operands.");
+                }
+                Repository.mergeBase(args[args.length - 2], args[args.length - 1],
+                        args.length == 4);
+                break;
             case "log":
-                validateArgs(args, 1);
-                Repository.log();
+                validateArgs(args, 1, 7);
+                Repository.log(LogOptions.parse(args));
                 break;
             case "global-log":
-                validateArgs(args, 1);
-                Repository.globalLog();
+                validateArgs(args, 1, 7);
+                Repository.globalLog(LogOptions.parse(args));
                 break;
             case "find":
-                validateArgs(args, 2);
-                Repository.find(args[1]);
+                validateArgs(args, 2, 3);
+                if (args.length == 3 && !args[1].equals("--word")) {
+                    Repository.error("Incorrect operands.");
+                }
+                Repository.find(args[args.length - 1], args.length == 3);
                 break;
             case "status":
                 validateArgs(args, 1);
                 Repository.status();
                 break;
+            case "pack":
+                validateArgs(args, 1);
+                Repository.pack();
+                break;
+            case "gc":
+                validateArgs(args, 1, 3);
+                if (args.length == 1) {
+                    Repository.gc(Collector.GRACE);
+                } else if (args.length == 3 && args[1].equals("--grace")) {
+                    try {
+                        Repository.gc(Long.parseLong(args[2]) * 1000);
+                    } catch (NumberFormatException excp) {
+                        Repository.error("Incorrect operands.");
+                    }
+                } else {
+                    Repository.error("Incorrect operands.");
+                }
+                break;
+            case "migrate":
+                validateArgs(args, 1);
+                Repository.migrate();
+                break;
             case "add-remote":
                 validateArgs(args, 3);
                 Repository.addRemote(args[1], args[2]);
@@ -95,11 +161,60 @@ public class Main {
                 validateArgs(args, 3);
                 Repository.pull(args[1], args[2]);
                 break;
+            case "clone":
+                validateArgs(args, 2, 5);
+                cloneRepository(args);
+                break;
+            case "daemon":
+                validateArgs(args, 1);
+                Daemon.serve();
+                break;
+            case "serve":
+                validateArgs(args, 2);
+                try {
+                    Server.serve(Integer.parseInt(args[1]));
+                } catch (NumberFormatException excp) {
+                    Repository.error("Incorrect operands.");
+                }
+                break;
             default:
                 Repository.error("No command with that name exists.");
         }
     }
 
+    /** Run clone ADDRESS [--depth N] [--filter=blob:none], as given in ARGS. */
+    private static void cloneRepository(String[] args) {
+        int depth = 0;
+        boolean blobs = true;
+        for (int i = 2; i < args.length; i += 1) {
+            if (args[i].equals("--filter=blob:none")) {
+                blobs = false;
+            } else if (args[i].equals("--depth") && i + 1 < args.length) {
+                try {
+                    depth = Integer.parseInt(args[i + 1]);
+                } catch (NumberFormatException excp) {
+                    Repository.error("Incorrect operands.");
+                }
+                if (depth < 1) {
+                    Repository.error("Incorrect operands.");
+                }
+                i += 1;
+            } else {
+                Repository.error("Incorrect operands.");
+            }
+        }
+        Repository.clone(args[1], depth, blobs);
+    }
+
+    /** Lock the repository for COMMAND, shared if it only reads. Init and
+     *  the servers take no lock. */
+    static void lock(String command) {
+        if (!(command.equals("init") || SERVERS.contains(command))
+                && Repository.GITLET_DIR.exists()) {
+            Lock.acquire(Repository.GITLET_DIR, !READERS.contains(command));
+        }
+    }
+
     public static void validateArgs(String[] args, int num) {
         validateArgs(args, num, num);
     }
@@ -112,7 +227,8 @@ public class Main {
         if (args[0].equals("checkout") && len >= 3) {
             validateFormat(args);
         }
-        if (!(args[0].equals("init") || Repository.GITLET_DIR.exists())) {
+        if (!(args[0].equals("init") || args[0].equals("clone")
+                || Repository.GITLET_DIR.exists())) {
             Repository.error("Not in an initialized Gitlet directory.");
         }
     }
@@ -0,0 +1,114 @@
+package gitlet;
+
+import java.util.*;
+
+/** Merges two versions of a text that descend from a common base, line by
+ *  line. Each side is diffed against the base, and the edits of both sides
+ *  are taken in base order and grouped where their base ranges overlap or
+ *  touch. A group changed on one side only, or changed the same way on
+ *  both, is resolved; any other group becomes a conflict region:
+ *
+ *      <<<<<<< HEAD
+ *      the lines of the current side
+ *      =======
+ *      the lines of the given side
+ *      >>>>>>>
+ */
+class Merge {
+
+    /** Represents a merged text and whether it holds a conflict. */
+    static class Result {
+        final String text;
+        final boolean conflict;
+
+        Result(String text, boolean conflict) {
+            this.text = text;
+            this.conflict = conflict;
+        }
+    }
+
+    /** Returns the line merge of texts OURS and THEIRS descending from BASE. */
+    static Result merge(String base, String ours, String theirs) {
+        List<String> baseLines = Diff.lines(base);
+        List<String> ourLines = Diff.lines(ours);
+        List<String> theirLines = Diff.lines(theirs);
+        HashMap<String, Integer> numbers = new HashMap<>();
+        int[] baseNumbers = Diff.number(baseLines, numbers);
+        List<Diff.Edit> ourEdits = Diff.diff(baseNumbers, Diff.number(ourLines, numbers));
+        List<Diff.Edit> theirEdits = Diff.diff(baseNumbers, Diff.number(theirLines, numbers));
+        StringBuilder out = new StringBuilder();
+        boolean conflict = false;
+        int position = 0;
+        int i = 0;
+        int j = 0;
+        while (i < ourEdits.size() || j < theirEdits.size()) {
+            int low = Math.min(baseStart(ourEdits, i), baseStart(theirEdits, j));
+            int high = low;
+            int ourFirst = i;
+            int theirFirst = j;
+            while (true) {
+                if (i < ourEdits.size() && ourEdits.get(i).baseStart <= high) {
+                    high = Math.max(high, ourEdits.get(i).baseEnd);
+                    i += 1;
+                } else if (j < theirEdits.size() && theirEdits.get(j).baseStart <= high) {
+                    high = Math.max(high, theirEdits.get(j).baseEnd);
+                    j += 1;
+                } else {
+                    break;
+                }
+            }
+            appendLines(out, baseLines, position, low);
+            position = high;
+            List<String> ourSide = side(baseLines, ourLines, ourEdits, ourFirst, i, low, high);
+            List<String> theirSide = side(baseLines, theirLines, theirEdits,
+                    theirFirst, j, low, high);
+            if (ourFirst == i || ourSide.equals(theirSide)) {
+                appendLines(out, theirSide, 0, theirSide.size());
+            } else if (theirFirst == j) {
+                appendLines(out, ourSide, 0, ourSide.size());
+            } else {
+                conflict = true;
+                out.append("<<<<<<< HEAD\n");
+                appendLines(out, ourSide, 0, ourSide.size());
+                endLine(out);
+                out.append("=======\n");
+                appendLines(out, theirSide, 0, theirSide.size());
+                endLine(out);
+                out.append(">>>>>>>\n");
+            }
+        }
+        appendLines(out, baseLines, position, baseLines.size());
+        return new Result(out.toString(), conflict);
+    }
+
+    private static int baseStart(List<Diff.Edit> edits, int index) {
+        return index < edits.size() ? edits.get(index).baseStart : Integer.MAX_VALUE;
+    }
+
+    /** Returns the lines of one side standing for base lines [LOW, HIGH),
+     *  which EDITS[FIRST, LAST) of that side fall within. */
+    private static List<String> side(List<String> baseLines, List<String> lines,
+                                     List<Diff.Edit> edits, int first, int last,
+                                     int low, int high) {
+        if (first == last) {
+            return baseLines.subList(low, high);
+        }
+        Diff.Edit start = edits.get(first);
+        Diff.Edit end = edits.get(last - 1);
+        return lines.subList(start.start - (start.baseStart - low),
+                end.end + (high - end.baseEnd));
+    }
+
+    private static void appendLines(StringBuilder out, List<String> lines, int from, int to) {
+        for (int i = from; i < to; i += 1) {
+            out.append(lines.get(i));
+        }
+    }
+
+    /** End the last line of OUT if it has no terminator, before a marker. */
+    private static void endLine(StringBuilder out) {
+        if (out.length() > 0 && out.charAt(out.length() - 1) != '\n') {
+            out.append('\n');
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package gitlet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/** A least recently used cache of decoded objects keyed by id, bounded by
+ *  an estimate of the bytes its values hold. Objects are content addressed,
+ *  so one cache serves every repository touched during an invocation.
+ *  @param <V> the type of cached objects
+ */
+class ObjectCache<V> {
+
+    /** The byte budget shared by all caches, set with the gitlet.cacheBytes
+     *  system property. */
+    static final long BUDGET = Long.getLong("gitlet.cacheBytes", 64L << 20);
+
+    /** Decoded commits. */
+    static final ObjectCache<Commit> COMMITS =
+            new ObjectCache<>("commits", BUDGET / 4, Commit::memorySize);
+
+    /** Rebuilt blob and tree contents. */
+    static final ObjectCache<byte[]> BLOBS =
+            new ObjectCache<>("blobs", BUDGET - BUDGET / 4, bytes -> bytes.length);
+
+    private final String name;
+    private final long capacity;
+    private final ToLongFunction<V> sizer;
+    private final LinkedHashMap<String, Map.Entry<V, Long>> entries =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    ObjectCache(String name, long capacity, ToLongFunction<V> sizer) {
+        this.name = name;
+        this.capacity = capacity;
+        this.sizer = sizer;
+    }
+
+    /** Returns the object cached under ID, or null. */
+    V get(String id) {
+        Map.Entry<V, Long> entry = entries.get(id);
+        if (entry == null) {
+            misses += 1;
+            return null;
+        }
+        hits += 1;
+        return entry.getKey();
+    }
+
+    /** Cache VALUE under ID, which was decoded from SIZE stored bytes. */
+    void put(String id, V value, long size) {
+        long cost = Math.max(size, sizer.applyAsLong(value)) + 64;
+        if (cost > capacity) {
+            return;
+        }
+        Map.Entry<V, Long> old = entries.put(id, Map.entry(value, cost));
+        this.size += cost - (old == null ? 0 : old.getValue());
+        Iterator<Map.Entry<V, Long>> eldest = entries.values().iterator();
+        while (this.size > capacity) {
+            this.size -= eldest.next().getValue();
+            eldest.remove();
+            evictions += 1;
+        }
+    }
+
+    /** Charge ID again for what VALUE, the object cached under it, holds
+     *  now, as an object that memoizes what it reads grows once cached. An
+     *  object grown past the capacity is dropped. */
+    void resize(String id, V value) {
+        Map.Entry<V, Long> entry = entries.get(id);
+        if (entry == null || entry.getKey() != value) {
+            return;
+        }
+        long cost = Math.max(entry.getValue(), sizer.applyAsLong(value) + 64);
+        if (cost > capacity) {
+            entries.remove(id);
+            size -= entry.getValue();
+            return;
+        }
+        put(id, value, cost - 64);
+    }
+
+    /** Returns a line of hit and miss counters for --stats. */
+    String stats() {
+        return String.format("%s: %d hits, %d misses, %d evictions, %d entries, %d/%d bytes",
+                name, hits, misses, evictions, entries.size(), size, capacity);
+    }
+}
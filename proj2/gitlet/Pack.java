@@ -0,0 +1,413 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+import static gitlet.Utils.*;
+
+/** Represents the gitlet packfile.
+ *  All packed objects live in one append-only data file, and a sorted
+ *  index maps each object id to its offset, so a repository with many
+ *  revisions does not pay one inode and one open per object.
+ *
+ *  Data file:  magic, then entries of (type byte, length int, bytes). The
+ *              type is BLOB, TREE or COMMIT.
+ *  Index file: magic, entry count, a 256-slot fan-out table counting the
+ *              ids whose first byte is at most the slot, then the entries
+ *              (20-byte id, type byte, offset long) sorted by id.
+ *
+ *  Packing appends to the data file before the index is replaced, so a
+ *  crash leaves the old index over a longer file. Repacking writes a new
+ *  data file and index under temporary names instead; once both are
+ *  complete the index is renamed to objects.idx.next, and from then on the
+ *  new pair replaces the old one even if the repack is cut off.
+ */
+class Pack {
+
+    static final byte BLOB = 1;
+    static final byte COMMIT = 2;
+    static final byte TREE = 3;
+
+    private static final int PACK_MAGIC = 0x47504b31;
+    private static final int INDEX_MAGIC = 0x47494431;
+
+    private static final int ID_BYTES = 20;
+    private static final int FANOUT = 256;
+    private static final int HEADER_SIZE = 8 + FANOUT * 4;
+    private static final int ENTRY_SIZE = ID_BYTES + 1 + 8;
+
+    /** The index file currently mapped, which follows changeRepository. */
+    private static File mappedIndex;
+
+    private static MappedByteBuffer index;
+
+    private static RandomAccessFile data;
+
+    /** Map the index of the current repository, if it has one. */
+    private static MappedByteBuffer index() {
+        File indexFile = Repository.PACK_INDEX;
+        if (!indexFile.equals(mappedIndex)) {
+            close();
+            recover();
+            mappedIndex = indexFile;
+            if (indexFile.exists()) {
+                try (FileChannel channel = FileChannel.open(indexFile.toPath())) {
+                    index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    data = new RandomAccessFile(Repository.PACK_FILE, "r");
+                } catch (IOException excp) {
+                    throw new IllegalArgumentException(excp.getMessage());
+                }
+                if (index.getInt(0) != INDEX_MAGIC) {
+                    throw error("Corrupted pack index.");
+                }
+            }
+        }
+        return index;
+    }
+
+    /** Unmap the index, so the next lookup reads it again. */
+    static void close() {
+        try {
+            if (!Objects.isNull(data)) {
+                data.close();
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        mappedIndex = null;
+        index = null;
+        data = null;
+    }
+
+    /** Finish installing the data file and index of a repack of the current
+     *  repository that was cut off after both were written, or remove its
+     *  data file if it was cut off before. */
+    private static void recover() {
+        File next = join(Repository.PACK_DIR, "objects.idx.next");
+        File temp = join(Repository.PACK_DIR, "objects.pack.tmp");
+        if (!next.exists()) {
+            temp.delete();
+            return;
+        }
+        if (temp.exists()) {
+            move(temp, Repository.PACK_FILE);
+        }
+        move(next, Repository.PACK_INDEX);
+    }
+
+    private static void move(File source, File target) {
+        try {
+            Files.move(source.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static int count(MappedByteBuffer buffer) {
+        return Objects.isNull(buffer) ? 0 : buffer.getInt(4);
+    }
+
+    private static int fanout(MappedByteBuffer buffer, int slot) {
+        return slot < 0 ? 0 : buffer.getInt(8 + slot * 4);
+    }
+
+    private static byte[] idAt(MappedByteBuffer buffer, int position) {
+        byte[] id = new byte[ID_BYTES];
+        buffer.get(HEADER_SIZE + position * ENTRY_SIZE, id);
+        return id;
+    }
+
+    /** Returns the position of ID in the index, or -1 if it is not packed. */
+    private static int find(String id) {
+        MappedByteBuffer buffer = index();
+        if (Objects.isNull(buffer) || id.length() != 2 * ID_BYTES) {
+            return -1;
+        }
+        byte[] key = hexToBytes(id);
+        int first = key[0] & 0xff;
+        int low = fanout(buffer, first - 1);
+        int high = fanout(buffer, first) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = Arrays.compareUnsigned(idAt(buffer, mid), key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    static boolean contains(String id) {
+        return find(id) >= 0;
+    }
+
+    /** Returns the stored bytes of packed object ID, or null. */
+    static byte[] read(String id) {
+        int position = find(id);
+        if (position < 0) {
+            return null;
+        }
+        long offset = index.getLong(HEADER_SIZE + position * ENTRY_SIZE + ID_BYTES + 1);
+        try {
+            data.seek(offset + 1);
+            byte[] content = new byte[data.readInt()];
+            data.readFully(content);
+            return content;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns a stream over the stored bytes of packed object ID, or null. */
+    static InputStream open(String id) {
+        int position = find(id);
+        if (position < 0) {
+            return null;
+        }
+        long offset = index.getLong(HEADER_SIZE + position * ENTRY_SIZE + ID_BYTES + 1);
+        try {
+            data.seek(offset + 1);
+            return new EntryStream(offset + 5, data.readInt());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Reads one packfile entry through its own channel position. */
+    private static class EntryStream extends InputStream {
+        private long position;
+        private long remaining;
+
+        EntryStream(long position, long length) {
+            this.position = position;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            ByteBuffer target = ByteBuffer.wrap(buffer, offset, (int) Math.min(length, remaining));
+            int count = data.getChannel().read(target, position);
+            if (count > 0) {
+                position += count;
+                remaining -= count;
+            }
+            return count;
+        }
+    }
+
+    /** Returns the ids of all packed objects of TYPE in sorted order. */
+    static List<String> ids(byte type) {
+        MappedByteBuffer buffer = index();
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < count(buffer); i += 1) {
+            if (buffer.get(HEADER_SIZE + i * ENTRY_SIZE + ID_BYTES) == type) {
+                ids.add(bytesToHex(idAt(buffer, i)));
+            }
+        }
+        return ids;
+    }
+
+    /** Collects the loose objects of the current repository as id to file. */
+    private static TreeMap<String, File> looseObjects(TreeMap<String, Byte> types) {
+        TreeMap<String, File> loose = new TreeMap<>();
+        File[] dicts = Repository.OBJECTS_DIR.listFiles(File::isDirectory);
+        if (!Objects.isNull(dicts)) {
+            for (File dict : dicts) {
+                for (String blobId : plainFilenamesIn(dict)) {
+                    File file = join(dict, blobId);
+                    loose.put(blobId, file);
+                    types.put(blobId, Tree.isTree(file) ? TREE : BLOB);
+                }
+            }
+        }
+        List<String> commits = plainFilenamesIn(Repository.COMMITS_DIR);
+        if (!Objects.isNull(commits)) {
+            for (String commitId : commits) {
+                loose.put(commitId, join(Repository.COMMITS_DIR, commitId));
+                types.put(commitId, COMMIT);
+            }
+        }
+        return loose;
+    }
+
+    /** Move every loose object into the packfile and rewrite the index.
+     *  Loose copies of packed objects are deleted, except commits rewritten
+     *  by migrate, which differ from their packed copies and are packed
+     *  again in their place. */
+    static void pack() {
+        if (!Repository.PACK_DIR.exists()) {
+            Repository.PACK_DIR.mkdir();
+        }
+        TreeMap<String, Byte> types = new TreeMap<>();
+        TreeMap<String, Long> offsets = new TreeMap<>();
+        MappedByteBuffer buffer = index();
+        for (int i = 0; i < count(buffer); i += 1) {
+            int entry = HEADER_SIZE + i * ENTRY_SIZE + ID_BYTES;
+            String id = bytesToHex(idAt(buffer, i));
+            types.put(id, buffer.get(entry));
+            offsets.put(id, buffer.getLong(entry + 1));
+        }
+        TreeMap<String, File> loose = looseObjects(types);
+        List<File> copies = new ArrayList<>();
+        Iterator<Map.Entry<String, File>> objects = loose.entrySet().iterator();
+        while (objects.hasNext()) {
+            Map.Entry<String, File> object = objects.next();
+            String id = object.getKey();
+            if (offsets.containsKey(id) && (types.get(id) != COMMIT
+                    || Arrays.equals(readContents(object.getValue()), read(id)))) {
+                copies.add(object.getValue());
+                objects.remove();
+            }
+        }
+        try (RandomAccessFile out = new RandomAccessFile(Repository.PACK_FILE, "rw")) {
+            if (out.length() == 0) {
+                out.writeInt(PACK_MAGIC);
+            }
+            out.seek(out.length());
+            for (Map.Entry<String, File> object : loose.entrySet()) {
+                File file = object.getValue();
+                offsets.put(object.getKey(), out.getFilePointer());
+                out.writeByte(types.get(object.getKey()));
+                out.writeInt((int) file.length());
+                try (FileChannel in = FileChannel.open(file.toPath())) {
+                    long copied = 0;
+                    while (copied < file.length()) {
+                        copied += in.transferTo(copied, file.length() - copied, out.getChannel());
+                    }
+                }
+                out.seek(out.length());
+            }
+            out.getFD().sync();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        writeIndex(offsets, types, Repository.PACK_INDEX);
+        copies.addAll(loose.values());
+        for (File file : copies) {
+            file.delete();
+            File parent = file.getParentFile();
+            if (!parent.equals(Repository.COMMITS_DIR)) {
+                parent.delete();
+            }
+        }
+    }
+
+    /** Write the index of the objects at OFFSETS of TYPES to TARGET. */
+    private static void writeIndex(TreeMap<String, Long> offsets, TreeMap<String, Byte> types,
+                                   File target) {
+        int[] fanout = new int[FANOUT];
+        for (String id : offsets.keySet()) {
+            fanout[Integer.parseInt(id.substring(0, 2), 16)] += 1;
+        }
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + offsets.size() * ENTRY_SIZE);
+        out.putInt(INDEX_MAGIC);
+        out.putInt(offsets.size());
+        int total = 0;
+        for (int slot : fanout) {
+            total += slot;
+            out.putInt(total);
+        }
+        for (Map.Entry<String, Long> entry : offsets.entrySet()) {
+            out.put(hexToBytes(entry.getKey()));
+            out.put(types.get(entry.getKey()));
+            out.putLong(entry.getValue());
+        }
+        close();
+        File temp = join(Repository.PACK_DIR, "objects.idx.tmp");
+        writeContents(temp, out.array());
+        Transaction.force(temp);
+        move(temp, target);
+        Transaction.force(Repository.PACK_DIR);
+    }
+
+    /** Replace the packfile with one holding only the objects of KEEP,
+     *  copied as stored from the packfile or their loose files, and remove
+     *  the loose files of the objects packed. */
+    static void repack(Set<String> keep) {
+        if (!Repository.PACK_DIR.exists()) {
+            Repository.PACK_DIR.mkdir();
+        }
+        TreeMap<String, Byte> types = new TreeMap<>();
+        TreeMap<String, Long> packed = new TreeMap<>();
+        MappedByteBuffer buffer = index();
+        for (int i = 0; i < count(buffer); i += 1) {
+            int entry = HEADER_SIZE + i * ENTRY_SIZE + ID_BYTES;
+            String id = bytesToHex(idAt(buffer, i));
+            types.put(id, buffer.get(entry));
+            packed.put(id, buffer.getLong(entry + 1));
+        }
+        TreeMap<String, File> loose = looseObjects(types);
+        types.keySet().retainAll(keep);
+        TreeMap<String, Long> offsets = new TreeMap<>();
+        File temp = join(Repository.PACK_DIR, "objects.pack.tmp");
+        try (RandomAccessFile out = new RandomAccessFile(temp, "rw")) {
+            out.setLength(0);
+            out.writeInt(PACK_MAGIC);
+            for (Map.Entry<String, Byte> object : types.entrySet()) {
+                String id = object.getKey();
+                offsets.put(id, out.getFilePointer());
+                out.writeByte(object.getValue());
+                if (loose.containsKey(id)) {
+                    File file = loose.get(id);
+                    out.writeInt((int) file.length());
+                    try (FileChannel in = FileChannel.open(file.toPath())) {
+                        transfer(in, 0, file.length(), out);
+                    }
+                } else {
+                    long offset = packed.get(id);
+                    data.seek(offset + 1);
+                    int length = data.readInt();
+                    out.writeInt(length);
+                    transfer(data.getChannel(), offset + 5, length, out);
+                }
+                out.seek(out.length());
+            }
+            out.getFD().sync();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        writeIndex(offsets, types, join(Repository.PACK_DIR, "objects.idx.next"));
+        recover();
+        for (String id : offsets.keySet()) {
+            File file = loose.get(id);
+            if (!Objects.isNull(file)) {
+                file.delete();
+                File parent = file.getParentFile();
+                if (!parent.equals(Repository.COMMITS_DIR)) {
+                    parent.delete();
+                }
+            }
+        }
+    }
+
+    /** Copy LENGTH bytes of IN from POSITION to the end of OUT. */
+    private static void transfer(FileChannel in, long position, long length,
+                                 RandomAccessFile out) throws IOException {
+        long copied = 0;
+        while (copied < length) {
+            copied += in.transferTo(position + copied, length - copied, out.getChannel());
+        }
+    }
+}
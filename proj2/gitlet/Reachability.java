@@ -0,0 +1,154 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+import static gitlet.Utils.*;
+
+/** Represents the reachability bitmaps of a repository, kept next to its
+ *  packfile in pack/objects.bitmap.
+ *  Each bitmap belongs to one commit and holds the commit-graph positions
+ *  of the commit and all of its ancestors. Bitmaps are written when the
+ *  repository is packed or collected, for the commit each ref points to
+ *  and every SPACING-th commit down its first parents, so a commit made
+ *  since is a short walk away from one. Whether a commit is an ancestor of
+ *  another, and which commits one side of a transfer lacks, then take a
+ *  walk over the commits made since and a few bitmap operations, however
+ *  long the history under them.
+ *
+ *  Encoding: magic, the size of the commit-graph the bitmaps were written
+ *  against with the 20-byte id of its last commit, the bitmap count, then
+ *  each position with its bitmap. Commits are only appended to the graph,
+ *  so the bitmaps hold as long as that last commit keeps its position; if
+ *  it does not, as after an interrupted gc, they are ignored.
+ */
+class Reachability {
+
+    private static final int MAGIC = 0x47524231;
+
+    /** The number of first parents between the commits given bitmaps. */
+    private static final int SPACING = 64;
+
+    /** The bitmaps loaded during this invocation, by bitmap file. */
+    private static final HashMap<File, Reachability> LOADED = new HashMap<>();
+
+    private final HashMap<Integer, Bitmap> bitmaps = new HashMap<>();
+
+    /** Returns the bitmaps of the current repository, none if they are
+     *  missing or do not match its commit-graph. */
+    static Reachability current() {
+        return LOADED.computeIfAbsent(Repository.PACK_BITMAP, Reachability::load);
+    }
+
+    /** Drop the bitmaps read so far, so they are read again when needed. */
+    static void clear() {
+        LOADED.clear();
+    }
+
+    private static Reachability load(File file) {
+        Reachability reachability = new Reachability();
+        if (!file.exists()) {
+            return reachability;
+        }
+        ByteBuffer in = ByteBuffer.wrap(readContents(file));
+        if (in.getInt() != MAGIC) {
+            throw error("Corrupted reachability bitmaps.");
+        }
+        int size = in.getInt();
+        String lastId = readId(in);
+        CommitGraph graph = CommitGraph.current();
+        if (size == 0 || graph.size() < size || !graph.id(size - 1).equals(lastId)) {
+            return reachability;
+        }
+        for (int i = in.getInt(); i > 0; i -= 1) {
+            reachability.bitmaps.put(in.getInt(), Bitmap.read(in));
+        }
+        return reachability;
+    }
+
+    boolean isEmpty() {
+        return bitmaps.isEmpty();
+    }
+
+    /** Returns the bitmap of commit-graph position POSITION, or null. */
+    Bitmap get(int position) {
+        return bitmaps.get(position);
+    }
+
+    /** Add to REACHED the commit at POSITION of GRAPH and its ancestors,
+     *  walking down to the commits with bitmaps and adding theirs. Commits
+     *  in STOP are not added and the walk does not go past them. Returns
+     *  REACHED. */
+    BitSet reach(CommitGraph graph, int position, BitSet reached, BitSet stop) {
+        Deque<Integer> pending = new ArrayDeque<>();
+        pending.push(position);
+        while (!pending.isEmpty()) {
+            int current = pending.pop();
+            if (current == CommitGraph.NONE || reached.get(current) || stop.get(current)) {
+                continue;
+            }
+            Bitmap bitmap = bitmaps.get(current);
+            if (!Objects.isNull(bitmap)) {
+                bitmap.orInto(reached);
+                continue;
+            }
+            reached.set(current);
+            pending.push(graph.parent(current));
+            pending.push(graph.mergedParent(current));
+        }
+        return reached;
+    }
+
+    /** Write the bitmaps of the commits the refs of the current repository
+     *  point to, and of every SPACING-th commit down their first parents.
+     *  Each is built from the bitmaps of its ancestors, so every commit is
+     *  walked about once. */
+    static void write() {
+        CommitGraph graph = CommitGraph.current();
+        TreeSet<Integer> selected = new TreeSet<>();
+        for (String tipId : Transfer.haves()) {
+            int current = graph.position(tipId);
+            for (int i = 0; current != CommitGraph.NONE; i += 1) {
+                if (i % SPACING == 0 && !selected.add(current)) {
+                    break;
+                }
+                current = graph.parent(current);
+            }
+        }
+        graph.flush();
+        if (graph.size() == 0) {
+            return;
+        }
+        Reachability reachability = new Reachability();
+        BitSet none = new BitSet();
+        int length = 4 + 4 + UID_LENGTH / 2 + 4;
+        for (int position : selected) {
+            Bitmap bitmap = Bitmap.of(reachability.reach(graph, position, new BitSet(), none));
+            reachability.bitmaps.put(position, bitmap);
+            length += 4 + bitmap.encodedSize();
+        }
+        ByteBuffer out = ByteBuffer.allocate(length);
+        out.putInt(MAGIC);
+        out.putInt(graph.size());
+        out.put(hexToBytes(graph.id(graph.size() - 1)));
+        out.putInt(selected.size());
+        for (int position : selected) {
+            out.putInt(position);
+            reachability.bitmaps.get(position).write(out);
+        }
+        Repository.PACK_DIR.mkdir();
+        File temp = join(Repository.PACK_DIR, "objects.bitmap.tmp");
+        writeContents(temp, out.array());
+        try {
+            Files.move(temp.toPath(), Repository.PACK_BITMAP.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        LOADED.put(Repository.PACK_BITMAP, reachability);
+    }
+}
@@ -30,6 +30,39 @@ public class Repository {
     /** The commits directory. */
     static File COMMITS_DIR;
 
+    /** The original bytes of the commits migrate rewrote, as they are sent. */
+    static File LEGACY_DIR;
+
+    /** The pack directory which stores the packfile and its index. */
+    static File PACK_DIR;
+
+    /** The packfile which stores packed objects back to back. */
+    static File PACK_FILE;
+
+    /** The pack index which maps sorted object ids to packfile offsets. */
+    static File PACK_INDEX;
+
+    /** The reachability bitmaps of the commits refs pointed to when packed. */
+    static File PACK_BITMAP;
+
+    /** The commit-graph file which stores parents and generations of commits. */
+    static File COMMIT_GRAPH;
+
+    /** The sorted index of all commit ids. */
+    static File COMMIT_INDEX;
+
+    /** The journal of commit ids not yet merged into the sorted index. */
+    static File COMMIT_JOURNAL;
+
+    /** The log of the id, parents, timestamp and message of every commit. */
+    static File COMMIT_LOG;
+
+    /** The index from message hashes to commit log records. */
+    static File MESSAGE_INDEX;
+
+    /** The journal of message index entries not yet merged into the index. */
+    static File MESSAGE_JOURNAL;
+
     /** The refs directory. */
     static File REFS_DIR;
 
@@ -48,20 +81,53 @@ public class Repository {
     /** The head file which indicate current branch of repo. */
     static File HEAD;
 
+    /** The journal of writes to the files above, replayed after a crash. */
+    static File JOURNAL;
+
+    /** The ids of the commits received by a fetch or push not yet finished. */
+    static File RECEIVED;
+
+    /** The address blobs are fetched from on first use, for partial clones. */
+    static File PROMISOR;
+
     public static void error(String message) {
         System.out.println(message);
+        exit();
+    }
+
+    /** End the current command, or the process unless a daemon or server
+     *  serves it. */
+    static void exit() {
+        if (Daemon.isServing() || Server.isServing()) {
+            throw new Daemon.Exit();
+        }
         System.exit(0);
     }
 
     public static void changeRepository(File gitRepository) {
         OBJECTS_DIR = join(gitRepository, "objects");
         COMMITS_DIR = join(gitRepository, "commits");
+        LEGACY_DIR = join(gitRepository, "legacy");
+        PACK_DIR = join(gitRepository, "pack");
+        PACK_FILE = join(PACK_DIR, "objects.pack");
+        PACK_INDEX = join(PACK_DIR, "objects.idx");
+        PACK_BITMAP = join(PACK_DIR, "objects.bitmap");
+        COMMIT_GRAPH = join(gitRepository, "commit-graph");
+        COMMIT_INDEX = join(gitRepository, "commit-ids");
+        COMMIT_JOURNAL = join(gitRepository, "commit-ids.new");
+        COMMIT_LOG = join(gitRepository, "commit-log");
+        MESSAGE_INDEX = join(gitRepository, "message-index");
+        MESSAGE_JOURNAL = join(gitRepository, "message-index.new");
         REFS_DIR = join(gitRepository, "refs");
         LOCAL = join(REFS_DIR, "local");
         REMOTES = join(REFS_DIR, "remotes");
         INDEX = join(gitRepository, "index");
         REMOTE = join(gitRepository, "remote");
         HEAD = join(gitRepository, "HEAD");
+        JOURNAL = join(gitRepository, "journal");
+        RECEIVED = join(gitRepository, "received");
+        PROMISOR = join(gitRepository, "promisor");
+        Transaction.recover();
     }
     public static void init() {
         if (GITLET_DIR.exists()) {
@@ -74,33 +140,47 @@ public class Repository {
         REFS_DIR.mkdir();
         LOCAL.mkdir();
         REMOTES.mkdir();
+        CommitIndex.rebuild(new TreeSet<>());
+        Transaction.begin();
         branch("master");
         updateBranch("master");
         commit("initial commit", new Date(0), null);
         HashMap<String, String> stagingArea = new HashMap<>();
         updateStagingArea(stagingArea);
+        Transaction.commit();
     }
 
     private static void add(String fileName, String blobId) {
-        File file = join(CWD, fileName);
-        writeContents(file, Blob.content(blobId));
+        Blob.writeTo(blobId, join(CWD, fileName));
         add(fileName);
     }
+    /** Stage FILENAME, or every working file when FILENAME is ".". */
     public static void add(String fileName) {
+        if (fileName.equals(".")) {
+            addAll(getWorkingFiles());
+            return;
+        }
         File targetFile = join(CWD, fileName);
-        if (!targetFile.exists()) {
+        if (!targetFile.isFile()) {
             error("File does not exist.");
         }
+        addAll(List.of(fileName));
+    }
+
+    private static void addAll(Collection<String> fileNames) {
         HashMap<String, String> stagingArea = getStagingArea();
         Commit headCommit = getHeadCommit();
-        String fBlobId = Blob.blob(targetFile);
-        String sBlobId = stagingArea.get(fileName);
-        String cBlobId = Objects.isNull(headCommit) ? null : headCommit.get(fileName);
-        if (!fBlobId.equals(sBlobId)) {
-            if (fBlobId.equals(cBlobId)) {
-                stagingArea.remove(fileName);
-            } else {
-                stagingArea.put(fileName, fBlobId);
+        TreeMap<String, String> hashes = hashFiles(fileNames);
+        for (String fileName : hashes.keySet()) {
+            String sBlobId = stagingArea.get(fileName);
+            String cBlobId = Objects.isNull(headCommit) ? null : headCommit.get(fileName);
+            String fBlobId = Blob.blob(join(CWD, fileName), hashes.get(fileName), cBlobId);
+            if (!fBlobId.equals(sBlobId)) {
+                if (fBlobId.equals(cBlobId)) {
+                    stagingArea.remove(fileName);
+                } else {
+                    stagingArea.put(fileName, fBlobId);
+                }
             }
         }
         updateStagingArea(stagingArea);
@@ -117,10 +197,7 @@ public class Repository {
             stagingArea.remove(fileName);
         } else if (!Objects.isNull(cBlobId)) {
             stagingArea.put(fileName, STAGED_REMOVAL);
-            File file = join(CWD, fileName);
-            if (file.exists()) {
-                restrictedDelete(file);
-            }
+            deleteWorkingFile(fileName);
         }
         updateStagingArea(stagingArea);
     }
@@ -129,6 +206,7 @@ public class Repository {
         if (message.isBlank()) {
             error("Please enter a commit message.");
         }
+        Transaction.begin();
         Commit commit = new Commit(message, timestamp);
         HashMap<String, String> stagingArea = getStagingArea();
         if (!Objects.isNull(stagingArea)) {
@@ -151,6 +229,7 @@ public class Repository {
         }
         String commitId = commit.save();
         updateHeadCommit(commitId);
+        Transaction.commit();
     }
 
     public static void checkout(String branchName) {
@@ -159,11 +238,13 @@ public class Repository {
             error("No need to checkout the current branch.");
         }
         File branchFile = getBranch(branchName);
-        if (!branchFile.exists()) {
+        if (!Transaction.exists(branchFile)) {
             error("No such branch exists.");
         }
-        switchToCommit(Utils.readContentsAsString(branchFile));
+        Transaction.begin();
+        switchToCommit(Transaction.readString(branchFile));
         updateBranch(branchName);
+        Transaction.commit();
     }
     public static void checkout(String commitId, String fileName) {
         Commit commit = Objects.isNull(commitId) ? getHeadCommit()
@@ -182,25 +263,42 @@ public class Repository {
             error("No commit with that id exists.");
         }
         HashMap<String, String> stagingArea = getStagingArea();
+        Commit headCommit = getHeadCommit();
         Set<String> trackedFiles = getTrackedFiles();
-        Set<String> checkoutFiles = targetCommit.getAll();
-        for (String fileName : checkoutFiles) {
-            if (!trackedFiles.contains(fileName) && join(CWD, fileName).exists()) {
+        TreeMap<String, String> changes = headCommit.diff(targetCommit);
+        for (String fileName : stagingArea.keySet()) {
+            changes.put(fileName, targetCommit.get(fileName));
+        }
+        TreeMap<String, String> hashes = hashFiles(headCommit.getAll());
+        for (String fileName : headCommit.getAll()) {
+            if (!(changes.containsKey(fileName)
+                    || headCommit.get(fileName).equals(hashes.get(fileName)))) {
+                changes.put(fileName, headCommit.get(fileName));
+            }
+        }
+        for (String fileName : changes.keySet()) {
+            if (!(Objects.isNull(changes.get(fileName)) || trackedFiles.contains(fileName))
+                    && join(CWD, fileName).exists()) {
                 error("There is an untracked file in the way;"
                         + " delete it, or add and commit it first.");
             }
         }
-        targetCommit.putAll();
-        trackedFiles.removeAll(checkoutFiles);
-        for (String file :trackedFiles) {
-            restrictedDelete(file);
+        Transfer.fetchPromised(changes.values());
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            if (Objects.isNull(change.getValue())) {
+                deleteWorkingFile(change.getKey());
+            } else {
+                targetCommit.put(change.getKey());
+            }
         }
         stagingArea.clear();
         updateStagingArea(stagingArea);
     }
     public static void reset(String commitId) {
+        Transaction.begin();
         switchToCommit(commitId);
         updateHeadCommit(commitId);
+        Transaction.commit();
     }
 
     public static void status() {
@@ -221,6 +319,7 @@ public class Repository {
         Set<String> stagingFiles = new TreeSet<>();
         Set<String> removedFiles = new TreeSet<>();
         TreeMap<String, Boolean> modifiedFiles = new TreeMap<>();
+        TreeMap<String, String> hashes = hashFiles(trackedFiles);
         for (String fileName : trackedFiles) {
             String sBlobId = stagingArea.get(fileName);
             String cBlobId = headCommit.get(fileName);
@@ -228,7 +327,7 @@ public class Repository {
             if (Objects.isNull(sBlobId)) {
                 if (!trackedFile.exists()) {
                     modifiedFiles.put(fileName, false);
-                } else if (!sha1(Utils.readContents(trackedFile)).equals(cBlobId)) {
+                } else if (!hashes.get(fileName).equals(cBlobId)) {
                     modifiedFiles.put(fileName, true);
                 }
             } else {
@@ -236,7 +335,7 @@ public class Repository {
                     removedFiles.add(fileName);
                 } else if (!trackedFile.exists()) {
                     modifiedFiles.put(fileName, false);
-                } else if (!sha1(Utils.readContents(trackedFile)).equals(sBlobId)) {
+                } else if (!hashes.get(fileName).equals(sBlobId)) {
                     modifiedFiles.put(fileName, true);
                 } else {
                     stagingFiles.add(fileName);
@@ -264,29 +363,33 @@ public class Repository {
         for (String untrackedFile : untrackedFiles) {
             statusMessage.append(untrackedFile);
         }
+        if (statCache.keySet().retainAll(trackedFiles)) {
+            statChanged = true;
+        }
         System.out.println(statusMessage);
+        updateStatCache();
     }
     public static void branch(String name) {
         File branchFile = getBranch(name);
-        if (branchFile.exists()) {
+        if (Transaction.exists(branchFile)) {
             error("A branch with that name already exists.");
         }
         Commit headCommit = getHeadCommit();
         if (!Objects.isNull(headCommit)) {
-            Utils.writeContents(branchFile, headCommit.getCommitId());
+            Transaction.write(branchFile, headCommit.getCommitId());
         }
     }
 
     public static void rmBranch(String name) {
         File branchFile = getBranch(name);
-        if (!branchFile.exists()) {
+        if (!Transaction.exists(branchFile)) {
             error("A branch with that name does not exist.");
         }
         String currentBranch = getCurrentBranch();
         if (currentBranch.equals(name)) {
             error("Cannot remove the current branch.");
         }
-        branchFile.delete();
+        Transaction.delete(branchFile);
     }
 
     private static boolean mergeFile(Set<String> fileSet, Commit headCommit,
@@ -328,10 +431,7 @@ public class Repository {
                             add(fileName, mBlobId);
                         } else if (!(sBlobId.equals(cBlobId) || sBlobId.equals(mBlobId))) {
                             //present in all,modified in head and merged branch
-                            isConflict = true;
-                            writeContents(join(CWD, fileName),
-                                    makeConflictMessage(cBlobId, mBlobId));
-                            add(fileName);
+                            isConflict |= mergeLines(fileName, sBlobId, cBlobId, mBlobId);
                         }
                     }
                 }
@@ -339,6 +439,25 @@ public class Repository {
         }
         return isConflict;
     }
+    /** Merge the lines of FILENAME, changed from SBLOBID to CBLOBID in the
+     *  head and to MBLOBID in the merged branch, and stage the result.
+     *  Binary files conflict as a whole. Returns whether it conflicts. */
+    private static boolean mergeLines(String fileName, String sBlobId,
+                                      String cBlobId, String mBlobId) {
+        String base = Blob.content(sBlobId);
+        String head = Blob.content(cBlobId);
+        String other = Blob.content(mBlobId);
+        if (base.indexOf('\0') >= 0 || head.indexOf('\0') >= 0 || other.indexOf('\0') >= 0) {
+            writeContents(join(CWD, fileName), makeConflictMessage(cBlobId, mBlobId));
+            add(fileName);
+            return true;
+        }
+        Merge.Result merged = Merge.merge(base, head, other);
+        writeContents(join(CWD, fileName), merged.text);
+        add(fileName);
+        return merged.conflict;
+    }
+
     public static void merge(String name) {
         HashMap<String, String> stagingArea = getStagingArea();
         String currentBranch = getCurrentBranch();
@@ -349,19 +468,24 @@ public class Repository {
             error("Cannot merge a branch with itself.");
         }
         File branchFile = getBranch(name);
-        if (!branchFile.exists()) {
+        if (!Transaction.exists(branchFile)) {
             error("A branch with that name does not exist.");
         }
-        String mergeId = Utils.readContentsAsString(branchFile);
+        String mergeId = Transaction.readString(branchFile);
         Commit headCommit = getHeadCommit();
         Commit mergeCommit = Commit.acquire(mergeId);
         String splitPoint = headCommit.findSplitPoint(mergeCommit);
+        if (Objects.isNull(splitPoint)) {
+            error("No common ancestor.");
+        }
         Commit splitCommit = Commit.acquire(splitPoint);
         if (splitPoint.equals(mergeCommit.getCommitId())) {
             error("Given branch is an ancestor of the current branch.");
         } else if (splitPoint.equals(headCommit.getCommitId())) {
+            Transaction.begin();
             switchToCommit(mergeId);
             updateBranch(name);
+            Transaction.commit();
             error("Current branch fast-forwarded.");
         }
         Set<String> untrackedSet = getUntrackedFiles();
@@ -377,41 +501,118 @@ public class Repository {
                 }
             }
         }
+        Transaction.begin();
         boolean isConflict = mergeFile(fileSet, headCommit, mergeCommit, splitCommit);
         commit("Merged " + name + " into " + currentBranch + ".", new Date(), mergeId);
+        Transaction.commit();
         if (isConflict) {
             System.out.println("Encountered a merge conflict.");
         }
     }
-    public static void log() {
+    /** Print the unified diff between commits FROM and TO, or from commit
+     *  FROM to the working files if TO is null, or from the staged files to
+     *  the working files if both are null. Branch names serve as commits.
+     *  Files whose blob ids match are skipped without being read, and
+     *  working files are hashed through the stat cache. */
+    public static void diff(String from, String to) {
+        TreeMap<String, String> oldIds = new TreeMap<>();
+        TreeMap<String, String> newIds = new TreeMap<>();
+        if (!Objects.isNull(to)) {
+            Commit fromCommit = Commit.acquire(resolve(from));
+            Commit toCommit = Commit.acquire(resolve(to));
+            newIds = fromCommit.diff(toCommit);
+            for (String fileName : newIds.keySet()) {
+                oldIds.put(fileName, fromCommit.get(fileName));
+            }
+        } else {
+            Commit commit = Objects.isNull(from) ? getHeadCommit()
+                    : Commit.acquire(resolve(from));
+            for (String fileName : commit.getAll()) {
+                oldIds.put(fileName, commit.get(fileName));
+            }
+            Set<String> fileNames = new TreeSet<>(oldIds.keySet());
+            for (Map.Entry<String, String> staged : getStagingArea().entrySet()) {
+                fileNames.add(staged.getKey());
+                if (Objects.isNull(from)) {
+                    oldIds.put(staged.getKey(), staged.getValue().equals(STAGED_REMOVAL)
+                            ? null : staged.getValue());
+                }
+            }
+            TreeMap<String, String> hashes = hashFiles(fileNames);
+            for (String fileName : fileNames) {
+                if (!Objects.equals(oldIds.get(fileName), hashes.get(fileName))) {
+                    newIds.put(fileName, hashes.get(fileName));
+                }
+            }
+        }
+        for (Map.Entry<String, String> change : newIds.entrySet()) {
+            String fileName = change.getKey();
+            String oldId = oldIds.get(fileName);
+            String newText = null;
+            if (!Objects.isNull(change.getValue())) {
+                newText = Objects.isNull(to) ? readContentsAsString(join(CWD, fileName))
+                        : Blob.content(change.getValue());
+            }
+            printFileDiff(fileName, Objects.isNull(oldId) ? null : Blob.content(oldId), newText);
+        }
+        updateStatCache();
+    }
+
+    /** Print the best common ancestor of the branches or commits FIRST and
+     *  SECOND, or every one of them if ALL. */
+    public static void mergeBase(String first, String second, boolean all) {
+        CommitGraph graph = CommitGraph.current();
+        List<String> bases = graph.mergeBases(resolve(first), resolve(second));
+        if (bases.isEmpty()) {
+            error("No common ancestor.");
+        }
+        MessageBuilder baseMessage = new MessageBuilder();
+        for (String base : all ? bases : bases.subList(0, 1)) {
+            baseMessage.append(base);
+        }
+        System.out.print(baseMessage);
+    }
+
+    /** Returns the commit id named by branch or abbreviated commit id NAME. */
+    private static String resolve(String name) {
+        File branchFile = getBranch(name);
+        String commitId = Transaction.exists(branchFile) ? Transaction.readString(branchFile)
+                : Commit.findCommId(name);
+        if (Objects.isNull(commitId)) {
+            error("No commit with that id exists.");
+        }
+        return commitId;
+    }
+
+    /** Print the first-parent history of the head commit as selected by
+     *  OPTIONS, each commit as soon as it is read. */
+    public static void log(LogOptions options) {
         Commit commit = getHeadCommit();
-        MessageBuilder logMessage = new MessageBuilder();
-        while (!Objects.isNull(commit)) {
-            makeCommitMessage(logMessage, commit);
+        while (!Objects.isNull(commit) && options.isOpen() && !options.isPastSince()) {
+            options.print(commit.getCommitId(), commit.getMergedParentId(),
+                    commit.getTimeStamp(), commit.getMessage());
             String parentId = commit.getParentId();
             commit = Objects.isNull(parentId) ? null : Commit.acquire(parentId);
         }
-        System.out.print(logMessage);
     }
 
-    public static void globalLog() {
-        List<String> commitDir = plainFilenamesIn(COMMITS_DIR);
-        MessageBuilder logMessage = new MessageBuilder();
-        for (String commitId : commitDir) {
-            Commit commit = Commit.acquire(commitId);
-            makeCommitMessage(logMessage, commit);
+    /** Print every commit as selected by OPTIONS, streamed from the commit log. */
+    public static void globalLog(LogOptions options) {
+        Iterator<CommitLog.Record> records = CommitLog.records().iterator();
+        while (records.hasNext() && options.isOpen()) {
+            CommitLog.Record record = records.next();
+            options.print(record.id, record.mergedParentId, record.timeStamp, record.message);
         }
-        System.out.print(logMessage);
     }
 
-    public static void find(String commitMessage) {
-        List<String> commitDir = plainFilenamesIn(COMMITS_DIR);
+    /** Print the ids of the commits whose message is COMMITMESSAGE or, if
+     *  BYWORD, contains it as a word. */
+    public static void find(String commitMessage, boolean byWord) {
+        List<String> commitIds = byWord ? CommitLog.findWord(commitMessage)
+                : CommitLog.find(commitMessage);
         MessageBuilder idMessage = new MessageBuilder();
-        for (String commitId : commitDir) {
-            Commit commit = Commit.acquire(commitId);
-            if (commit.getMessage().equals(commitMessage)) {
-                idMessage.append(commitId);
-            }
+        for (String commitId : commitIds) {
+            idMessage.append(commitId);
         }
         if (idMessage.isEmpty()) {
             error("Found no commit with that message.");
@@ -419,11 +620,44 @@ public class Repository {
         System.out.println(idMessage);
     }
 
+    public static void pack() {
+        Pack.pack();
+        Reachability.write();
+    }
+
+    /** Delete the objects nothing leads to that are older than GRACE
+     *  milliseconds, and repack the rest. */
+    public static void gc(long grace) {
+        int removed = Collector.collect(grace);
+        System.out.println("Removed " + removed + " unreachable objects.");
+    }
+
+    /** Rewrite the Java-serialized commits, index and remotes of older
+     *  repositories in their binary encodings. */
+    public static void migrate() {
+        int migrated = Commit.migrate();
+        Transaction.begin();
+        updateStagingArea(getStagingArea());
+        if (Transaction.exists(REMOTE)) {
+            updateRemoteInformation(getRemoteInformation());
+        }
+        Transaction.commit();
+        System.out.println("Migrated " + migrated + " commits.");
+    }
+
     public static void addRemote(String name, String address) {
         HashMap<String, String> remote = getRemoteInformation();
+        if (!isRefName(name)) {
+            error("Invalid remote name.");
+        }
         if (remote.containsKey(name)) {
             error("A remote with that name already exists.");
         }
+        if (Server.isAddress(address)) {
+            remote.put(name, address);
+            updateRemoteInformation(remote);
+            return;
+        }
         StringBuilder pathBuilder = new StringBuilder();
         for (String path : address.split("/")) {
             pathBuilder.append(path);
@@ -443,31 +677,70 @@ public class Repository {
     }
 
     public static void fetch(String name, String branchName) {
-        HashMap<String, String> remote = getRemoteInformation();
-        File repository = join(CWD, remote.get(name));
-        if (!repository.exists()) {
-            error("Remote directory not found.");
-        }
-        changeRepository(repository);
-        File branch = getBranch(branchName);
-        if (!branch.exists()) {
-            error("That remote does not have that branch.");
-        }
-        HashSet<Commit> fetchCommits = new HashSet<>();
-        HashMap<String, String> fetchBlobs = new HashMap<>();
-        Commit commit = getBranchCommit(branch);
-        String remoteHeadId = commit.getCommitId();
-        while (!Objects.isNull(commit)) {
-            fetchSnapShots(commit, fetchCommits, fetchBlobs);
-            commit = Commit.acquire(commit.getParentId());
+        fetch(name, branchName, Transfer.Filter.NONE);
+    }
+
+    /** Fetch BRANCHNAME of remote NAME, leaving out what FILTER does, and
+     *  return the id it points to. */
+    private static String fetch(String name, String branchName, Transfer.Filter filter) {
+        String address = remoteAddress(name, branchName);
+        String remoteHeadId;
+        if (Server.isAddress(address)) {
+            remoteHeadId = Server.fetch(address, branchName, filter);
+        } else {
+            File repository = join(CWD, address);
+            if (!repository.exists()) {
+                error("Remote directory not found.");
+            }
+            Lock.acquire(repository, false);
+            changeRepository(repository);
+            File branch = getBranch(branchName);
+            if (!Transaction.exists(branch)) {
+                error("That remote does not have that branch.");
+            }
+            remoteHeadId = Transaction.readString(branch);
+            Transfer.copy(repository, GITLET_DIR, remoteHeadId, filter);
         }
-        changeRepository(GITLET_DIR);
         File remoteDir = Utils.join(REMOTES, name);
         if (!remoteDir.exists()) {
             remoteDir.mkdir();
         }
-        Utils.writeContents(Utils.join(remoteDir, branchName), remoteHeadId);
-        pushSnapShots(fetchCommits, fetchBlobs);
+        Transaction.write(Utils.join(remoteDir, branchName), remoteHeadId);
+        Transfer.finish();
+        return remoteHeadId;
+    }
+
+    /** Create a repository in the current directory from the master branch
+     *  of the repository at ADDRESS, added as remote origin, and check it
+     *  out. Only the last DEPTH commits of history are copied if DEPTH is
+     *  positive. Unless BLOBS, only the blobs checked out are copied, and
+     *  the others are fetched from ADDRESS when first read. A clone that
+     *  fails ends the process, which then deletes the repository it
+     *  created, so the clone can be run again. */
+    public static void clone(String address, int depth, boolean blobs) {
+        init();
+        Thread cleanup = new Thread(() -> delete(GITLET_DIR));
+        Runtime.getRuntime().addShutdownHook(cleanup);
+        addRemote("origin", address);
+        String headId = fetch("origin", "master", new Transfer.Filter(depth, blobs));
+        if (!blobs) {
+            String origin = getRemoteInformation().get("origin");
+            Transfer.promise(Server.isAddress(origin) ? origin
+                    : join(CWD, origin).getAbsolutePath());
+        }
+        reset(headId);
+        Runtime.getRuntime().removeShutdownHook(cleanup);
+    }
+
+    /** Delete FILE, and everything in it if it is a directory. */
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (!Objects.isNull(children)) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
     }
 
     public static void pull(String name, String branchName) {
@@ -476,39 +749,43 @@ public class Repository {
         merge(remoteBranchName);
     }
 
+    /** Returns the address of remote NAME, ending the command if there is
+     *  no such remote or BRANCHNAME cannot name one of its branches. */
+    private static String remoteAddress(String name, String branchName) {
+        String address = getRemoteInformation().get(name);
+        if (Objects.isNull(address) || !isRefName(name)) {
+            error("A remote with that name does not exist.");
+        }
+        if (!isRefName(branchName)) {
+            error("Invalid branch name.");
+        }
+        return address;
+    }
+
     public static void push(String name, String branchName) {
-        File repository = join(CWD, getRemoteInformation().get(name));
+        String address = remoteAddress(name, branchName);
+        String headCommitId = getHeadCommit().getCommitId();
+        if (Server.isAddress(address)) {
+            Server.push(address, branchName, headCommitId);
+            return;
+        }
+        File repository = join(CWD, address);
         if (!repository.exists()) {
             error("Remote directory not found.");
         }
+        Lock.acquire(repository, true);
         changeRepository(repository);
         File branchFile = getBranch(branchName);
-        if (!branchFile.exists()) {
-            Utils.writeContents(branchFile, getHeadCommit().getCommitId());
-            System.exit(0);
-        }
-        String remoteCommitId = getBranchCommit(branchFile).getCommitId();
-        changeRepository(GITLET_DIR);
-        Commit commit = getHeadCommit();
-        String headCommitId = commit.getCommitId();
-        Boolean isAncestor = false;
-        HashSet<Commit> fetchCommits = new HashSet<>();
-        HashMap<String, String> fetchBlobs = new HashMap<>();
-        while (!Objects.isNull(commit)) {
-            String commitId = commit.getCommitId();
-            if (commitId.equals(remoteCommitId)) {
-                isAncestor = true;
-                break;
+        if (Transaction.exists(branchFile)) {
+            String remoteCommitId = Transaction.readString(branchFile);
+            changeRepository(GITLET_DIR);
+            if (!CommitGraph.current().isAncestor(remoteCommitId, headCommitId)) {
+                error("Please pull down remote changes before pushing.");
             }
-            fetchSnapShots(commit, fetchCommits, fetchBlobs);
-            commit = Commit.acquire(commit.getParentId());
         }
-        if (!isAncestor) {
-            error("Please pull down remote changes before pushing.");
-        }
-        changeRepository(repository);
-        pushSnapShots(fetchCommits, fetchBlobs);
-        Utils.writeContents(branchFile, headCommitId);
+        Transfer.copy(GITLET_DIR, repository, headCommitId);
+        Transaction.write(branchFile, headCommitId);
+        Transfer.finish();
         changeRepository(GITLET_DIR);
     }
 }
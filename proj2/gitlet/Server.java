@@ -0,0 +1,352 @@
+package gitlet;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.*;
+
+import static gitlet.Utils.*;
+
+/** Serves the repository of the current directory to gitlet processes on
+ *  other hosts over TCP, and fetches from and pushes to such servers for
+ *  remotes added with an address of the form gitlet://HOST:PORT.
+ *  The server runs one request at a time, each on its own connection and
+ *  holding the repository lock as a local fetch or push would. A request is
+ *  magic, the command and the branch name, empty for objects. Branch names
+ *  that Gitlet.isRefName refuses are rejected before any file is touched.
+ *
+ *  fetch: the client sends the count and the ids of its haves, the depth,
+ *  0 for all of history, and whether to send blobs. The server replies with
+ *  a status, the id of the branch and the pack stream of the commits the
+ *  client lacks.
+ *  push: the server replies with a status, a presence byte and the id of
+ *  the branch, and the count and ids of its haves. The client sends the id
+ *  of its head and the pack stream of the commits the server lacks, and the
+ *  server replies with a status once the branch is moved.
+ *  objects: the client sends the count and the ids of the blobs a partial
+ *  clone lacks. The server replies with a status and each blob as its
+ *  id, length and content.
+ *
+ *  A status is OK, or FAILED followed by the message the server printed.
+ *  Each side writes everything it has to say before reading the reply, so
+ *  a transfer takes one round trip besides the push reply. A transfer that
+ *  is cut off is resumed by running it again; see Transfer.
+ *
+ *  There is no authentication, so the server listens on the loopback
+ *  interface unless the gitlet.serveAddress system property names another.
+ *  The lock is never held while waiting on a client: what is sent is
+ *  written to a temporary file first, and a pushed pack is read into one
+ *  and checked before the repository is locked to store it. A client that
+ *  sends nothing for gitlet.serveTimeout milliseconds is dropped.
+ */
+class Server {
+
+    static final String SCHEME = "gitlet://";
+
+    private static final int MAGIC = 0x47535631;
+    private static final byte OK = 0;
+    private static final byte FAILED = 1;
+
+    /** How long to wait on a silent peer, set with the gitlet.serveTimeout
+     *  system property. */
+    private static final int TIMEOUT = Integer.getInteger("gitlet.serveTimeout", 30000);
+
+    private static boolean serving;
+
+    static boolean isServing() {
+        return serving;
+    }
+
+    /** Returns whether ADDRESS names a server rather than a directory. */
+    static boolean isAddress(String address) {
+        return address.startsWith(SCHEME);
+    }
+
+    /** Serve requests for the current repository on PORT until killed. */
+    static void serve(int port) {
+        String host = System.getProperty("gitlet.serveAddress");
+        try (ServerSocket server = new ServerSocket(port, 50, Objects.isNull(host)
+                ? InetAddress.getLoopbackAddress() : InetAddress.getByName(host))) {
+            serving = true;
+            System.out.println("Serving on port " + server.getLocalPort() + ".");
+            System.out.flush();
+            while (true) {
+                try (Socket client = server.accept()) {
+                    client.setSoTimeout(TIMEOUT);
+                    handle(client);
+                } catch (IOException | RuntimeException excp) {
+                    System.err.println(Objects.isNull(excp.getMessage())
+                            ? excp.toString() : excp.getMessage());
+                } finally {
+                    Lock.releaseAll();
+                    Daemon.invalidate();
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static void handle(Socket client) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(client.getInputStream()));
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(client.getOutputStream()));
+        if (in.readInt() != MAGIC) {
+            return;
+        }
+        String command = in.readUTF();
+        String branchName = in.readUTF();
+        Repository.changeRepository(Repository.GITLET_DIR);
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(message, true));
+        try {
+            if (!command.equals("objects") && !Gitlet.isRefName(branchName)) {
+                Repository.error("Invalid branch name.");
+            }
+            switch (command) {
+                case "fetch":
+                    upload(branchName, in, out);
+                    break;
+                case "push":
+                    receive(branchName, in, out);
+                    break;
+                case "objects":
+                    uploadObjects(in, out);
+                    break;
+                default:
+                    Repository.error("No command with that name exists.");
+            }
+        } catch (Daemon.Exit excp) {
+            out.writeByte(FAILED);
+            out.writeUTF(message.toString().trim());
+        } catch (GitletException excp) {
+            out.writeByte(FAILED);
+            out.writeUTF(excp.getMessage());
+        } finally {
+            System.setOut(stdout);
+        }
+        out.flush();
+    }
+
+    private static void upload(String branchName, DataInputStream in, DataOutputStream out)
+            throws IOException {
+        Set<String> haves = new HashSet<>();
+        for (int i = in.readInt(); i > 0; i -= 1) {
+            haves.add(readId(in));
+        }
+        Transfer.Filter filter = new Transfer.Filter(in.readInt(), in.readBoolean());
+        Lock.acquire(Repository.GITLET_DIR, false);
+        File branch = Gitlet.getBranch(branchName);
+        if (!Transaction.exists(branch)) {
+            Repository.error("That remote does not have that branch.");
+        }
+        String headId = Transaction.readString(branch);
+        sendUnlocked(pack -> Transfer.send(headId, haves, filter, pack), headId, out);
+    }
+
+    /** Writes a reply to a client. */
+    private interface Reply {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /** Write REPLY to a temporary file, release the lock, then send OK, the
+     *  id HEADID unless it is null, and the file to OUT. */
+    private static void sendUnlocked(Reply reply, String headId, DataOutputStream out)
+            throws IOException {
+        File temp = File.createTempFile("gitlet", ".pack");
+        try {
+            try (DataOutputStream spooled = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)))) {
+                reply.write(spooled);
+            }
+            Lock.releaseAll();
+            out.writeByte(OK);
+            if (!Objects.isNull(headId)) {
+                writeId(out, headId);
+            }
+            Files.copy(temp.toPath(), out);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    private static void uploadObjects(DataInputStream in, DataOutputStream out)
+            throws IOException {
+        List<String> objectIds = new ArrayList<>();
+        for (int i = in.readInt(); i > 0; i -= 1) {
+            objectIds.add(readId(in));
+        }
+        Lock.acquire(Repository.GITLET_DIR, false);
+        for (String objectId : objectIds) {
+            if (!Blob.contains(objectId)) {
+                Repository.error("Missing object " + objectId + ".");
+            }
+        }
+        sendUnlocked(objects -> {
+            for (String objectId : objectIds) {
+                Transfer.write(objects, objectId, Blob.bytes(objectId));
+            }
+        }, null, out);
+    }
+
+    /** Take a push. The branch and haves are read under a shared lock,
+     *  released before the client sends, and the pack is spooled and
+     *  checked before the exclusive lock is taken to store it. The head must
+     *  then be stored with all it leads to beyond the haves, and the branch
+     *  is read again under that lock, in case it moved in between. */
+    private static void receive(String branchName, DataInputStream in, DataOutputStream out)
+            throws IOException {
+        Lock.acquire(Repository.GITLET_DIR, false);
+        File branch = Gitlet.getBranch(branchName);
+        String remoteId = Transaction.exists(branch) ? Transaction.readString(branch) : null;
+        Set<String> haves = Transfer.haves();
+        Lock.releaseAll();
+        Daemon.invalidate();
+        out.writeByte(OK);
+        out.writeBoolean(!Objects.isNull(remoteId));
+        if (!Objects.isNull(remoteId)) {
+            writeId(out, remoteId);
+        }
+        out.writeInt(haves.size());
+        for (String have : haves) {
+            writeId(out, have);
+        }
+        out.flush();
+        String headId = readId(in);
+        File pack = Transfer.spool(in);
+        try (DataInputStream packIn = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(pack)))) {
+            Lock.acquire(Repository.GITLET_DIR, true);
+            Transfer.receive(packIn, false);
+        } finally {
+            pack.delete();
+        }
+        try {
+            Transfer.checkConnected(headId, haves);
+        } catch (GitletException excp) {
+            Transfer.finish();
+            throw excp;
+        }
+        remoteId = Transaction.exists(branch) ? Transaction.readString(branch) : null;
+        if (!Objects.isNull(remoteId) && !CommitGraph.current().isAncestor(remoteId, headId)) {
+            Repository.error("Please pull down remote changes before pushing.");
+        }
+        Transaction.write(branch, headId);
+        Transfer.finish();
+        out.writeByte(OK);
+    }
+
+    private static Socket connect(String address) throws IOException {
+        URI uri = URI.create(address);
+        if (Objects.isNull(uri.getHost()) || uri.getPort() < 0) {
+            Repository.error("Remote directory not found.");
+        }
+        Socket socket = new Socket(uri.getHost(), uri.getPort());
+        socket.setSoTimeout(TIMEOUT);
+        return socket;
+    }
+
+    private static void request(DataOutputStream out, String command, String branchName)
+            throws IOException {
+        out.writeInt(MAGIC);
+        out.writeUTF(command);
+        out.writeUTF(branchName);
+    }
+
+    /** Read a status from IN, ending the command with the message of the
+     *  server if it failed. */
+    private static void expect(DataInputStream in) throws IOException {
+        if (in.readByte() != OK) {
+            Repository.error(in.readUTF());
+        }
+    }
+
+    /** Fetch branch BRANCHNAME of the server at ADDRESS into the current
+     *  repository, leaving out what FILTER does, and return the id it points
+     *  to. */
+    static String fetch(String address, String branchName, Transfer.Filter filter) {
+        try (Socket socket = connect(address)) {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+            request(out, "fetch", branchName);
+            Set<String> haves = Transfer.haves();
+            out.writeInt(haves.size());
+            for (String have : haves) {
+                writeId(out, have);
+            }
+            out.writeInt(filter.depth);
+            out.writeBoolean(filter.blobs);
+            out.flush();
+            expect(in);
+            String headId = readId(in);
+            Transfer.receive(in, !Objects.isNull(System.console()));
+            return headId;
+        } catch (IOException excp) {
+            Repository.error("The transfer was cut off; run it again to resume.");
+            return null;
+        }
+    }
+
+    /** Push commit HEADID of the current repository to branch BRANCHNAME of
+     *  the server at ADDRESS. */
+    static void push(String address, String branchName, String headId) {
+        try (Socket socket = connect(address)) {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+            request(out, "push", branchName);
+            out.flush();
+            expect(in);
+            String remoteId = in.readBoolean() ? readId(in) : null;
+            Set<String> haves = new HashSet<>();
+            for (int i = in.readInt(); i > 0; i -= 1) {
+                haves.add(readId(in));
+            }
+            if (!Objects.isNull(remoteId)
+                    && !CommitGraph.current().isAncestor(remoteId, headId)) {
+                Repository.error("Please pull down remote changes before pushing.");
+            }
+            writeId(out, headId);
+            Transfer.send(headId, haves, Transfer.Filter.NONE, out);
+            expect(in);
+        } catch (IOException excp) {
+            Repository.error("The transfer was cut off; run it again to resume.");
+        }
+    }
+
+    /** Fetch the blobs OBJECTIDS from the server at ADDRESS into the current
+     *  repository. */
+    static void fetchObjects(String address, Collection<String> objectIds) {
+        try (Socket socket = connect(address)) {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+            request(out, "objects", "");
+            out.writeInt(objectIds.size());
+            for (String objectId : objectIds) {
+                writeId(out, objectId);
+            }
+            out.flush();
+            expect(in);
+            for (int i = objectIds.size(); i > 0; i -= 1) {
+                String objectId = readId(in);
+                byte[] content = Transfer.read(in);
+                if (!sha1(content).equals(objectId)) {
+                    throw error("Corrupted object %s.", objectId);
+                }
+                Blob.blob(objectId, content);
+            }
+        } catch (IOException excp) {
+            Repository.error("The transfer was cut off; run it again to resume.");
+        }
+    }
+}
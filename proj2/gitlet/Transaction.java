@@ -0,0 +1,318 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import static gitlet.Utils.*;
+
+/** Writes the files naming the state of a repository, such as HEAD, the
+ *  index, the refs and the remotes, so that a crash never leaves them half
+ *  written or out of step with each other.
+ *  The writes of a transaction are held in memory, where reads through this
+ *  class see them, until the outermost transaction commits. They are then
+ *  appended to the journal of their repository as one record, which is
+ *  forced to disk once, and each file is replaced by renaming a temporary
+ *  copy over it. A write outside a transaction commits on its own.
+ *
+ *  Replaced files are not forced: the journal keeps their contents until it
+ *  grows past CHECKPOINT_BYTES, when they are forced together and the
+ *  journal is emptied. The commits, trees and blobs written since the last
+ *  commit are forced, with their directories, before the journal record,
+ *  so a ref never reaches the disk ahead of what it names. Opening a
+ *  repository replays its journal, so after a crash either all or none of
+ *  the writes of a transaction take effect.
+ *  Setting the gitlet.fsync system property to false skips every force.
+ */
+class Transaction {
+
+    private static final int RECORD_MAGIC = 0x474c4a31;
+
+    private static final int HEADER_SIZE = 8;
+
+    private static final long CHECKPOINT_BYTES = 1 << 18;
+
+    private static final boolean FSYNC =
+            Boolean.parseBoolean(System.getProperty("gitlet.fsync", "true"));
+
+    /** The writes of the open transaction by journal, then by file. A null
+     *  content deletes the file. */
+    private static final LinkedHashMap<File, LinkedHashMap<File, byte[]>> PENDING =
+            new LinkedHashMap<>();
+
+    /** The length of each journal when this process last replayed or
+     *  appended to it. */
+    private static final HashMap<File, Long> CHECKED = new HashMap<>();
+
+    /** The object files written and not yet forced. */
+    private static final LinkedHashSet<File> UNFORCED = new LinkedHashSet<>();
+
+    private static int depth;
+
+    static void begin() {
+        depth += 1;
+    }
+
+    /** Commit the current transaction, writing out its files if it is the
+     *  outermost one. */
+    static void commit() {
+        if (depth == 0) {
+            throw error("No transaction to commit.");
+        }
+        depth -= 1;
+        if (depth == 0) {
+            flush();
+        }
+    }
+
+    /** Drop the open transaction and everything known about the journals. */
+    static void abort() {
+        depth = 0;
+        PENDING.clear();
+        CHECKED.clear();
+    }
+
+    static void write(File file, byte[] contents) {
+        record(file, contents);
+    }
+
+    static void write(File file, String contents) {
+        record(file, contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static void delete(File file) {
+        record(file, null);
+    }
+
+    /** Record that the object FILE was written, so it is forced before the
+     *  next transaction commits. */
+    static void written(File file) {
+        if (FSYNC) {
+            UNFORCED.add(file);
+        }
+    }
+
+    /** Force the object files written so far, then their directories and
+     *  the directories holding those, which may be new. */
+    private static void forceWritten() {
+        Set<File> directories = new LinkedHashSet<>();
+        for (File file : UNFORCED) {
+            if (file.isFile()) {
+                force(file);
+                directories.add(file.getParentFile());
+            }
+        }
+        for (File directory : new ArrayList<>(directories)) {
+            directories.add(directory.getParentFile());
+        }
+        directories.forEach(Transaction::force);
+        UNFORCED.clear();
+    }
+
+    private static void record(File file, byte[] contents) {
+        PENDING.computeIfAbsent(Repository.JOURNAL, k -> new LinkedHashMap<>())
+                .put(file, contents);
+        if (depth == 0) {
+            flush();
+        }
+    }
+
+    /** Returns whether FILE exists, counting the open transaction. */
+    static boolean exists(File file) {
+        Map<File, byte[]> writes = pendingWith(file);
+        return Objects.isNull(writes) ? file.exists() : !Objects.isNull(writes.get(file));
+    }
+
+    /** Returns the contents of FILE, counting the open transaction. */
+    static byte[] read(File file) {
+        Map<File, byte[]> writes = pendingWith(file);
+        return Objects.isNull(writes) ? readContents(file) : writes.get(file);
+    }
+
+    static String readString(File file) {
+        return new String(read(file), StandardCharsets.UTF_8);
+    }
+
+    private static Map<File, byte[]> pendingWith(File file) {
+        for (Map<File, byte[]> writes : PENDING.values()) {
+            if (writes.containsKey(file)) {
+                return writes;
+            }
+        }
+        return null;
+    }
+
+    private static void flush() {
+        forceWritten();
+        for (Map.Entry<File, LinkedHashMap<File, byte[]>> entry : PENDING.entrySet()) {
+            commit(entry.getKey(), entry.getValue());
+        }
+        PENDING.clear();
+    }
+
+    /** Append WRITES to JOURNAL as one record, force it, then apply them. */
+    private static void commit(File journal, Map<File, byte[]> writes) {
+        recover(journal);
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        writeVarint(payload, writes.size());
+        for (Map.Entry<File, byte[]> write : writes.entrySet()) {
+            writeString(payload, journal.getParentFile().toPath()
+                    .relativize(write.getKey().toPath()).toString()
+                    .replace(File.separatorChar, '/'));
+            byte[] contents = write.getValue();
+            payload.write(Objects.isNull(contents) ? 0 : 1);
+            if (!Objects.isNull(contents)) {
+                writeVarint(payload, contents.length);
+                payload.writeBytes(contents);
+            }
+        }
+        byte[] bytes = payload.toByteArray();
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + bytes.length + UID_LENGTH / 2);
+        out.putInt(RECORD_MAGIC).putInt(bytes.length).put(bytes).put(hexToBytes(sha1(bytes)));
+        out.flip();
+        boolean created = !journal.exists();
+        long length;
+        try (FileChannel channel = FileChannel.open(journal.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            if (FSYNC) {
+                channel.force(true);
+            }
+            length = channel.size();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (created) {
+            force(journal.getParentFile());
+        }
+        CHECKED.put(journal, length);
+        apply(journal, writes);
+        if (length > CHECKPOINT_BYTES) {
+            checkpoint(journal);
+        }
+    }
+
+    /** Replace each file of WRITES, through a temporary file beside JOURNAL. */
+    private static void apply(File journal, Map<File, byte[]> writes) {
+        File temp = join(journal.getParentFile(), "journal.tmp");
+        for (Map.Entry<File, byte[]> write : writes.entrySet()) {
+            File file = write.getKey();
+            if (Objects.isNull(write.getValue())) {
+                file.delete();
+                continue;
+            }
+            writeContents(temp, write.getValue());
+            try {
+                Files.move(temp.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+    }
+
+    /** Replay the journal of the current repository. */
+    static void recover() {
+        recover(Repository.JOURNAL);
+    }
+
+    /** Apply every write of JOURNAL whose file does not already hold it,
+     *  and cut off a record left incomplete by a crash. The journal is only
+     *  read again once its length differs from what this process saw. */
+    private static void recover(File journal) {
+        Long checked = CHECKED.get(journal);
+        if (!Objects.isNull(checked) && checked == journal.length()) {
+            return;
+        }
+        LinkedHashMap<File, byte[]> writes = new LinkedHashMap<>();
+        long length = journal.exists() ? read(journal, writes) : 0;
+        writes.entrySet().removeIf(write -> Objects.isNull(write.getValue())
+                ? !write.getKey().exists()
+                : write.getKey().isFile()
+                    && Arrays.equals(readContents(write.getKey()), write.getValue()));
+        apply(journal, writes);
+        if (journal.exists() && length < journal.length()) {
+            try (FileChannel channel = FileChannel.open(journal.toPath(),
+                    StandardOpenOption.WRITE)) {
+                channel.truncate(length);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        CHECKED.put(journal, length);
+    }
+
+    /** Read the complete records of JOURNAL into WRITES, later writes of a
+     *  file replacing earlier ones, and return the length they span. */
+    private static long read(File journal, LinkedHashMap<File, byte[]> writes) {
+        ByteBuffer in = ByteBuffer.wrap(readContents(journal));
+        File directory = journal.getParentFile();
+        while (in.remaining() >= HEADER_SIZE) {
+            int start = in.position();
+            int size = in.getInt(start + 4);
+            if (in.getInt(start) != RECORD_MAGIC || size < 0
+                    || in.remaining() < HEADER_SIZE + size + UID_LENGTH / 2) {
+                break;
+            }
+            byte[] bytes = new byte[size];
+            in.position(start + HEADER_SIZE).get(bytes);
+            if (!readId(in).equals(sha1(bytes))) {
+                in.position(start);
+                break;
+            }
+            ByteBuffer record = ByteBuffer.wrap(bytes);
+            for (long i = readVarint(record); i > 0; i -= 1) {
+                File file = join(directory, Utils.readString(record));
+                byte[] contents = null;
+                if (record.get() != 0) {
+                    contents = new byte[(int) readVarint(record)];
+                    record.get(contents);
+                }
+                writes.remove(file);
+                writes.put(file, contents);
+            }
+        }
+        return in.position();
+    }
+
+    /** Force every file JOURNAL wrote, with the directories naming them,
+     *  and empty it. */
+    private static void checkpoint(File journal) {
+        LinkedHashMap<File, byte[]> writes = new LinkedHashMap<>();
+        read(journal, writes);
+        Set<File> directories = new HashSet<>();
+        for (File file : writes.keySet()) {
+            if (file.isFile()) {
+                force(file);
+            }
+            directories.add(file.getParentFile());
+        }
+        directories.forEach(Transaction::force);
+        journal.delete();
+        CHECKED.put(journal, 0L);
+    }
+
+    /** Force FILE to disk. Directories cannot be opened on every platform,
+     *  so failing to force one is ignored. */
+    static void force(File file) {
+        if (!FSYNC) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException excp) {
+            if (!file.isDirectory()) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,440 @@
+package gitlet;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static gitlet.Utils.*;
+
+/** Copies history between repositories for fetch and push, sending only
+ *  what the destination lacks.
+ *  The destination offers the commits its refs point to as haves. The
+ *  source walks back from the wanted commit through both parents and stops
+ *  at anything reachable from a have it knows, so the walk reads the new
+ *  commits and few more. Each new commit is then copied parents first,
+ *  after the trees and blobs it adds over its first parent. A local copy
+ *  reads them in batches of up to BATCH_BYTES before switching to the
+ *  destination, and a stream sends them one at a time, so memory does not
+ *  grow with the amount of history sent.
+ *
+ *  Each blob goes with the id of the blob its first parent holds at the
+ *  same path, and the receiver stores it as a delta against that one when
+ *  it holds it, as add would have, so a transfer keeps history compressed.
+ *
+ *  Between processes the commits go as one pack stream: magic, the commit
+ *  count and the object count, then for each commit the count of its new
+ *  objects, each object as its 20-byte id, that base id as a presence byte
+ *  and a 20-byte id, length and content, and the commit as its id, length
+ *  and bytes as stored. The receiver checks every object and commit
+ *  against its id. Nothing is acknowledged, so the sender never waits on
+ *  the receiver.
+ *
+ *  Each commit received is recorded in .gitlet/received once it and all
+ *  of its objects are stored. Its ancestors came before it, so it is a
+ *  have for a transfer run again after one was cut off, which then resumes
+ *  where the first stopped. The record is removed once a ref points to the
+ *  received commits.
+ */
+class Transfer {
+
+    private static final int PACK_MAGIC = 0x47545032;
+
+    /** The most content a local copy reads from the source before writing
+     *  it to the destination, as switching repositories reopens them. */
+    private static final long BATCH_BYTES = 8 << 20;
+
+    /** The longest object or commit a pack stream may carry, set in bytes
+     *  with the gitlet.maxObjectBytes system property, so a length sent by
+     *  a peer is checked before anything is allocated for it. */
+    static final int MAX_OBJECT_BYTES = Integer.getInteger("gitlet.maxObjectBytes", 256 << 20);
+
+    /** Returns the ids the refs of the current repository point to, and
+     *  those of the commits received by an unfinished transfer. */
+    static Set<String> haves() {
+        Set<String> haves = new HashSet<>();
+        if (Repository.RECEIVED.exists()) {
+            ByteBuffer in = ByteBuffer.wrap(readContents(Repository.RECEIVED));
+            while (in.remaining() >= UID_LENGTH / 2) {
+                haves.add(readId(in));
+            }
+        }
+        if (!Repository.REFS_DIR.exists()) {
+            return haves;
+        }
+        try (Stream<Path> refs = Files.walk(Repository.REFS_DIR.toPath())) {
+            refs.filter(Files::isRegularFile)
+                    .forEach(ref -> haves.add(Transaction.readString(ref.toFile())));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return haves;
+    }
+
+    /** Represents what a transfer leaves out: the commits DEPTH or more
+     *  parents away from the head if DEPTH is positive, and the blobs unless
+     *  BLOBS. A commit whose first parent is left out is sent whole, and its
+     *  receiver treats it as a root. */
+    static class Filter {
+        static final Filter NONE = new Filter(0, true);
+
+        final int depth;
+        final boolean blobs;
+
+        Filter(int depth, boolean blobs) {
+            this.depth = depth;
+            this.blobs = blobs;
+        }
+    }
+
+    /** Returns the commits of the current repository a repository holding
+     *  HAVES lacks to have HEADID, as kept by FILTER, parents first. */
+    private static List<String> commits(String headId, Collection<String> haves,
+                                        Filter filter) {
+        return CommitGraph.current().only(headId, haves, filter.depth);
+    }
+
+    /** Returns the ids of the trees, and of the blobs if FILTER keeps them,
+     *  of commit COMMITID in the current repository that the receiver of
+     *  COMMITIDS lacks, trees before the entries they list. These are the
+     *  ones its first parent does not hold at the same path, unless FILTER
+     *  left that parent out. Each blob is mapped to the one that parent
+     *  holds at its path, or to null like the trees. */
+    static LinkedHashMap<String, String> objects(String commitId, Collection<String> commitIds,
+                                                 Filter filter) {
+        Commit commit = Commit.acquire(commitId);
+        Commit parent = filter.depth > 0 && !commitIds.contains(commit.getParentId())
+                ? null : Commit.acquire(commit.getParentId());
+        String treeId = commit.getTreeId();
+        String parentTreeId = Objects.isNull(parent) ? null : parent.getTreeId();
+        LinkedHashMap<String, String> objects = new LinkedHashMap<>();
+        if (!Objects.isNull(treeId) && (Objects.isNull(parent) || !Objects.isNull(parentTreeId))) {
+            Tree.added(parentTreeId, treeId, objects, filter.blobs);
+            return objects;
+        }
+        if (!Objects.isNull(treeId)) {
+            for (String subtreeId : Tree.trees(treeId)) {
+                objects.put(subtreeId, null);
+            }
+        }
+        if (!filter.blobs) {
+            return objects;
+        }
+        for (String fileName : commit.getAll()) {
+            String blobId = commit.get(fileName);
+            String baseId = Objects.isNull(parent) ? null : parent.get(fileName);
+            if (!blobId.equals(baseId)) {
+                objects.putIfAbsent(blobId, baseId);
+            }
+        }
+        return objects;
+    }
+
+    /** Copy the commit HEADID of repository SOURCE, with every ancestor and
+     *  object repository DESTINATION lacks, into DESTINATION. Returns the
+     *  number of commits copied. The current repository is DESTINATION
+     *  afterwards. */
+    static int copy(File source, File destination, String headId) {
+        return copy(source, destination, headId, Filter.NONE);
+    }
+
+    /** As copy, leaving out what FILTER does. */
+    static int copy(File source, File destination, String headId, Filter filter) {
+        Repository.changeRepository(destination);
+        Set<String> haves = haves();
+        Repository.changeRepository(source);
+        List<String> commitIds = commits(headId, haves, filter);
+        Set<String> sent = filter.depth > 0 ? new HashSet<>(commitIds) : Set.of();
+        LinkedHashMap<String, byte[]> batch = new LinkedHashMap<>();
+        HashMap<String, String> bases = new HashMap<>();
+        long batchBytes = 0;
+        LinkedHashMap<String, byte[]> batchCommits = new LinkedHashMap<>();
+        for (String commitId : commitIds) {
+            for (Map.Entry<String, String> object : objects(commitId, sent, filter).entrySet()) {
+                byte[] content = content(object.getKey());
+                batch.put(object.getKey(), content);
+                if (!Objects.isNull(object.getValue())) {
+                    bases.put(object.getKey(), object.getValue());
+                }
+                batchBytes += content.length;
+            }
+            batchCommits.put(commitId, Commit.stored(commitId));
+            if (batchBytes >= BATCH_BYTES) {
+                store(destination, batch, bases, batchCommits);
+                batchBytes = 0;
+                Repository.changeRepository(source);
+            }
+        }
+        if (!batchCommits.isEmpty()) {
+            store(destination, batch, bases, batchCommits);
+        }
+        Repository.changeRepository(destination);
+        CommitGraph graph = CommitGraph.current();
+        for (String commitId : commitIds) {
+            graph.position(commitId);
+        }
+        graph.flush();
+        return commitIds.size();
+    }
+
+    /** Returns the content of object OBJECTID of the current repository,
+     *  which must be stored. */
+    private static byte[] content(String objectId) {
+        byte[] content = Blob.bytes(objectId);
+        if (Objects.isNull(content)) {
+            throw error("Missing object %s.", objectId);
+        }
+        return content;
+    }
+
+    /** Store the objects of BATCH, each against its base in BASES, and then
+     *  the commits of COMMITS, parents first and as stored in the source,
+     *  in repository DESTINATION, recording each commit as received, and
+     *  empty all three. The current repository is DESTINATION afterwards. */
+    private static void store(File destination, Map<String, byte[]> batch,
+                              Map<String, String> bases, Map<String, byte[]> commits) {
+        Repository.changeRepository(destination);
+        for (Map.Entry<String, byte[]> object : batch.entrySet()) {
+            Blob.blob(object.getKey(), object.getValue(), bases.get(object.getKey()));
+        }
+        for (Map.Entry<String, byte[]> commit : commits.entrySet()) {
+            Commit.receive(commit.getKey(), commit.getValue());
+            received(commit.getKey());
+        }
+        batch.clear();
+        bases.clear();
+        commits.clear();
+    }
+
+    /** Write to OUT the pack stream of the commits of the current
+     *  repository reachable from HEADID but from none of HAVES, leaving out
+     *  what FILTER does. */
+    static void send(String headId, Collection<String> haves, Filter filter,
+                     DataOutputStream out) throws IOException {
+        List<String> commitIds = commits(headId, haves, filter);
+        Set<String> sent = filter.depth > 0 ? new HashSet<>(commitIds) : Set.of();
+        List<Map<String, String>> objectIds = new ArrayList<>();
+        int total = 0;
+        for (String commitId : commitIds) {
+            objectIds.add(objects(commitId, sent, filter));
+            total += objectIds.get(objectIds.size() - 1).size();
+        }
+        out.writeInt(PACK_MAGIC);
+        out.writeInt(commitIds.size());
+        out.writeInt(total);
+        for (int i = 0; i < commitIds.size(); i += 1) {
+            String commitId = commitIds.get(i);
+            Map<String, String> objects = objectIds.get(i);
+            out.writeInt(objects.size());
+            for (Map.Entry<String, String> object : objects.entrySet()) {
+                writeId(out, object.getKey());
+                writeBase(out, object.getValue());
+                write(out, content(object.getKey()));
+            }
+            write(out, commitId, Commit.stored(commitId));
+        }
+        out.flush();
+    }
+
+    /** Write object ID with its content BYTES to OUT. */
+    static void write(DataOutputStream out, String id, byte[] bytes)
+            throws IOException {
+        writeId(out, id);
+        write(out, bytes);
+    }
+
+    /** Write the content BYTES of an object to OUT, after its id. */
+    private static void write(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /** Write BASEID, the blob an object of a pack stream may be stored
+     *  against, or null, to OUT. */
+    private static void writeBase(DataOutputStream out, String baseId) throws IOException {
+        out.writeBoolean(!Objects.isNull(baseId));
+        if (!Objects.isNull(baseId)) {
+            writeId(out, baseId);
+        }
+    }
+
+    /** Read a base id written by writeBase from IN. */
+    private static String readBase(DataInputStream in) throws IOException {
+        return in.readBoolean() ? readId(in) : null;
+    }
+
+    /** Read the content of an object written by write from IN, after its
+     *  id. Lengths beyond MAX_OBJECT_BYTES are rejected. */
+    static byte[] read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_OBJECT_BYTES) {
+            throw error("Object of %d bytes rejected.", length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /** Copy the pack stream IN to a temporary file and return it, checking
+     *  each object and commit against its id on the way. Nothing is stored in a
+     *  repository, so no lock is needed while a slow peer sends. */
+    static File spool(DataInputStream in) throws IOException {
+        File pack = File.createTempFile("gitlet", ".pack");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(pack)))) {
+            if (in.readInt() != PACK_MAGIC) {
+                throw error("Unexpected pack stream.");
+            }
+            int commits = in.readInt();
+            out.writeInt(PACK_MAGIC);
+            out.writeInt(commits);
+            out.writeInt(in.readInt());
+            for (int i = 0; i < commits; i += 1) {
+                int objects = in.readInt();
+                out.writeInt(objects);
+                for (int j = 0; j < objects; j += 1) {
+                    String objectId = readId(in);
+                    String baseId = readBase(in);
+                    byte[] content = read(in);
+                    if (!sha1(content).equals(objectId)) {
+                        throw error("Corrupted object %s.", objectId);
+                    }
+                    writeId(out, objectId);
+                    writeBase(out, baseId);
+                    write(out, content);
+                }
+                String commitId = readId(in);
+                byte[] content = read(in);
+                if (!sha1(content).equals(commitId)) {
+                    throw error("Corrupted commit %s.", commitId);
+                }
+                write(out, commitId, content);
+            }
+        } catch (IOException | RuntimeException excp) {
+            pack.delete();
+            throw excp;
+        }
+        return pack;
+    }
+
+    /** Store the pack stream IN in the current repository, printing the
+     *  objects received so far to the standard error if PROGRESS. */
+    static void receive(DataInputStream in, boolean progress) throws IOException {
+        if (in.readInt() != PACK_MAGIC) {
+            throw error("Unexpected pack stream.");
+        }
+        int commits = in.readInt();
+        int total = in.readInt();
+        int count = 0;
+        CommitGraph graph = CommitGraph.current();
+        for (int i = 0; i < commits; i += 1) {
+            for (int j = in.readInt(); j > 0; j -= 1) {
+                String objectId = readId(in);
+                String baseId = readBase(in);
+                byte[] content = read(in);
+                if (!sha1(content).equals(objectId)) {
+                    throw error("Corrupted object %s.", objectId);
+                }
+                Blob.blob(objectId, content, baseId);
+                count += 1;
+                if (progress && (count == total || count % 64 == 0)) {
+                    System.err.print("\rReceiving objects: " + count + "/" + total);
+                }
+            }
+            String commitId = readId(in);
+            Commit.receive(commitId, read(in));
+            graph.position(commitId);
+            received(commitId);
+        }
+        graph.flush();
+        if (progress && total > 0) {
+            System.err.println(", done.");
+        }
+    }
+
+    /** Check that commit HEADID of the current repository is stored with
+     *  the parents, trees and blobs of every commit a repository holding
+     *  HAVES lacks to have it, as a pushed head names whatever its sender
+     *  chose to send. */
+    static void checkConnected(String headId, Collection<String> haves) {
+        if (!Commit.exists(headId)) {
+            throw error("Missing commit %s.", headId);
+        }
+        for (String commitId : commits(headId, haves, Filter.NONE)) {
+            Commit commit = Commit.acquire(commitId);
+            for (String parentId : new String[]{commit.getParentId(),
+                    commit.getMergedParentId()}) {
+                if (!Objects.isNull(parentId) && !Commit.exists(parentId)) {
+                    throw error("Missing commit %s.", parentId);
+                }
+            }
+            for (String objectId : objects(commitId, Set.of(), Filter.NONE).keySet()) {
+                if (!Blob.contains(objectId)) {
+                    throw error("Missing object %s.", objectId);
+                }
+            }
+        }
+    }
+
+    /** Record that commit COMMITID and its objects are stored. */
+    private static void received(String commitId) {
+        try (OutputStream out = new FileOutputStream(Repository.RECEIVED, true)) {
+            out.write(hexToBytes(commitId));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Forget the commits received, once a ref of the current repository
+     *  points to them. */
+    static void finish() {
+        Repository.RECEIVED.delete();
+    }
+
+    /** Record ADDRESS, a directory or a server, as the repository the
+     *  blobs left out of the current repository are fetched from. */
+    static void promise(String address) {
+        writeContents(Repository.PROMISOR, address);
+    }
+
+    /** Fetch the blobs of BLOBIDS the current repository lacks from the
+     *  repository it was cloned from without blobs, all in one request.
+     *  Null ids are ignored, and nothing is fetched into a repository that
+     *  holds all of its blobs. */
+    static void fetchPromised(Collection<String> blobIds) {
+        if (!Repository.PROMISOR.exists()) {
+            return;
+        }
+        Set<String> missing = new LinkedHashSet<>();
+        for (String blobId : blobIds) {
+            if (!Objects.isNull(blobId) && !Blob.contains(blobId)) {
+                missing.add(blobId);
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+        String address = readContentsAsString(Repository.PROMISOR);
+        if (Server.isAddress(address)) {
+            Server.fetchObjects(address, missing);
+            return;
+        }
+        File repository = Repository.OBJECTS_DIR.getParentFile();
+        File source = new File(address);
+        Lock.acquire(source, false);
+        try {
+            for (String blobId : missing) {
+                Repository.changeRepository(source);
+                byte[] content = Blob.bytes(blobId);
+                Repository.changeRepository(repository);
+                if (!Objects.isNull(content)) {
+                    Blob.blob(blobId, content);
+                }
+            }
+        } finally {
+            Repository.changeRepository(repository);
+        }
+    }
+}
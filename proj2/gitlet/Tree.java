@@ -0,0 +1,195 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static gitlet.Utils.*;
+
+/** Represents a gitlet tree object, one directory of a commit.
+ *  A tree maps each name in the directory to the id of its blob, or, for a
+ *  name ending in '/', to the id of the tree of that subdirectory. Trees
+ *  are content addressed and stored as blobs, so commits share every
+ *  subtree that did not change between them.
+ *
+ *  Encoding: magic, version, entry count, then each name with its 20-byte
+ *  id in name order.
+ */
+class Tree {
+
+    private static final byte[] MAGIC = {'G', 'L', 'T', 1};
+
+    /** Returns the entries of tree TREEID, empty for a null id. */
+    static TreeMap<String, String> entries(String treeId) {
+        TreeMap<String, String> entries = new TreeMap<>();
+        if (Objects.isNull(treeId)) {
+            return entries;
+        }
+        byte[] bytes = Blob.bytes(treeId);
+        if (Objects.isNull(bytes)
+                || !Arrays.equals(bytes, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+            throw error("Missing tree %s.", treeId);
+        }
+        ByteBuffer in = ByteBuffer.wrap(bytes, MAGIC.length, bytes.length - MAGIC.length);
+        for (long i = readVarint(in); i > 0; i -= 1) {
+            entries.put(readString(in), readId(in));
+        }
+        return entries;
+    }
+
+    /** Returns whether loose object FILE holds a tree. Trees are stored in
+     *  full, so only the start of it is read. */
+    static boolean isTree(File file) {
+        return Arrays.equals(Blob.head(file, MAGIC.length), MAGIC);
+    }
+
+    /** Store a tree with ENTRIES and return its id. */
+    static String save(SortedMap<String, String> entries) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(MAGIC);
+        writeVarint(out, entries.size());
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            writeString(out, entry.getKey());
+            writeId(out, entry.getValue());
+        }
+        return Blob.blob(out.toByteArray());
+    }
+
+    /** Returns the blob id of PATH in tree TREEID, or null. */
+    static String get(String treeId, String path) {
+        String[] names = path.split("/");
+        for (int i = 0; i < names.length - 1 && !Objects.isNull(treeId); i += 1) {
+            treeId = entries(treeId).get(names[i] + "/");
+        }
+        return Objects.isNull(treeId) ? null : entries(treeId).get(names[names.length - 1]);
+    }
+
+    /** Returns every file path of tree TREEID mapped to its blob id. */
+    static TreeMap<String, String> flatten(String treeId) {
+        TreeMap<String, String> files = new TreeMap<>();
+        flatten(treeId, "", files);
+        return files;
+    }
+
+    private static void flatten(String treeId, String prefix, TreeMap<String, String> files) {
+        for (Map.Entry<String, String> entry : entries(treeId).entrySet()) {
+            String name = entry.getKey();
+            if (name.endsWith("/")) {
+                flatten(entry.getValue(), prefix + name, files);
+            } else {
+                files.put(prefix + name, entry.getValue());
+            }
+        }
+    }
+
+    /** Returns every path whose blob differs between trees FROMID and TOID,
+     *  mapped to its blob id in TOID or to null if TOID lacks it. Subtrees
+     *  with equal ids are skipped without being read. */
+    static TreeMap<String, String> diff(String fromId, String toId) {
+        TreeMap<String, String> changes = new TreeMap<>();
+        diff(fromId, toId, "", changes);
+        return changes;
+    }
+
+    private static void diff(String fromId, String toId, String prefix,
+                             TreeMap<String, String> changes) {
+        if (Objects.equals(fromId, toId)) {
+            return;
+        }
+        TreeMap<String, String> from = entries(fromId);
+        TreeMap<String, String> to = entries(toId);
+        Set<String> names = new TreeSet<>(from.keySet());
+        names.addAll(to.keySet());
+        for (String name : names) {
+            String fromEntry = from.get(name);
+            String toEntry = to.get(name);
+            if (name.endsWith("/")) {
+                diff(fromEntry, toEntry, prefix + name, changes);
+            } else if (!Objects.equals(fromEntry, toEntry)) {
+                changes.put(prefix + name, toEntry);
+            }
+        }
+    }
+
+    /** Add to OBJECTS the ids of the trees, and of the blobs if BLOBS,
+     *  reachable from tree TOID that tree FROMID does not hold at the same
+     *  path, each tree before its entries. Each blob is mapped to the one
+     *  FROMID holds at its path, the earlier version it may be stored as a
+     *  delta against, or to null like the trees. Subtrees with equal ids
+     *  are skipped without being read. */
+    static void added(String fromId, String toId, Map<String, String> objects, boolean blobs) {
+        if (Objects.equals(fromId, toId) || Objects.isNull(toId)) {
+            return;
+        }
+        objects.putIfAbsent(toId, null);
+        TreeMap<String, String> from = entries(fromId);
+        for (Map.Entry<String, String> entry : entries(toId).entrySet()) {
+            String name = entry.getKey();
+            String fromEntry = from.get(name);
+            if (name.endsWith("/")) {
+                added(fromEntry, entry.getValue(), objects, blobs);
+            } else if (blobs && !entry.getValue().equals(fromEntry)) {
+                objects.putIfAbsent(entry.getValue(), fromEntry);
+            }
+        }
+    }
+
+    /** Returns the ids of TREEID and all of its subtrees. */
+    static Set<String> trees(String treeId) {
+        Set<String> trees = new HashSet<>();
+        Deque<String> pending = new ArrayDeque<>();
+        pending.push(treeId);
+        while (!pending.isEmpty()) {
+            String current = pending.pop();
+            if (trees.add(current)) {
+                for (Map.Entry<String, String> entry : entries(current).entrySet()) {
+                    if (entry.getKey().endsWith("/")) {
+                        pending.push(entry.getValue());
+                    }
+                }
+            }
+        }
+        return trees;
+    }
+
+    /** Returns the id of the tree TREEID with CHANGES applied, where each
+     *  path maps to its new blob id or to null to remove it. Only the trees
+     *  on changed paths are rewritten. */
+    static String apply(String treeId, SortedMap<String, String> changes) {
+        String result = applyTo(treeId, changes);
+        return Objects.isNull(result) ? save(new TreeMap<>()) : result;
+    }
+
+    /** As apply, but returns null for a tree left empty. */
+    private static String applyTo(String treeId, SortedMap<String, String> changes) {
+        if (changes.isEmpty()) {
+            return treeId;
+        }
+        TreeMap<String, String> entries = entries(treeId);
+        TreeMap<String, TreeMap<String, String>> subChanges = new TreeMap<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            String path = change.getKey();
+            int slash = path.indexOf('/');
+            if (slash < 0) {
+                if (Objects.isNull(change.getValue())) {
+                    entries.remove(path);
+                } else {
+                    entries.put(path, change.getValue());
+                }
+            } else {
+                subChanges.computeIfAbsent(path.substring(0, slash + 1), k -> new TreeMap<>())
+                        .put(path.substring(slash + 1), change.getValue());
+            }
+        }
+        for (Map.Entry<String, TreeMap<String, String>> sub : subChanges.entrySet()) {
+            String subtree = applyTo(entries.get(sub.getKey()), sub.getValue());
+            if (Objects.isNull(subtree)) {
+                entries.remove(sub.getKey());
+            } else {
+                entries.put(sub.getKey(), subtree);
+            }
+        }
+        return entries.isEmpty() ? null : save(entries);
+    }
+}
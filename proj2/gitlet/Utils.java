@@ -1,7 +1,10 @@
 package gitlet;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilenameFilter;
@@ -9,6 +12,8 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.charset.StandardCharsets;
@@ -31,6 +36,9 @@ class Utils {
     /** The length of a complete SHA-1 UID as a hexadecimal numeral. */
     static final int UID_LENGTH = 40;
 
+    /** The size of the buffer used to stream file contents. */
+    static final int BUFFER_SIZE = 1 << 16;
+
     /* SHA-1 HASH VALUES. */
 
     /** Returns the SHA-1 hash of the concatenation of VALS, which may
@@ -57,12 +65,49 @@ class Utils {
         }
     }
 
+    /** Returns the SHA-1 hash of the bytes of FILE, read through a fixed
+     *  size buffer so that memory use does not grow with the file. */
+    static String sha1(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                md.update(buffer);
+                buffer.clear();
+            }
+            return bytesToHex(md.digest());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+
     /** Returns the SHA-1 hash of the concatenation of the strings in
      *  VALS. */
     static String sha1(List<Object> vals) {
         return sha1(vals.toArray(new Object[vals.size()]));
     }
 
+    /** Returns the 20 raw bytes of the hexadecimal SHA-1 UID ID. */
+    static byte[] hexToBytes(String id) {
+        byte[] result = new byte[id.length() / 2];
+        for (int i = 0; i < result.length; i += 1) {
+            result[i] = (byte) Integer.parseInt(id.substring(2 * i, 2 * i + 2), 16);
+        }
+        return result;
+    }
+
+    /** Returns the hexadecimal numeral of the raw SHA-1 bytes in BYTES. */
+    static String bytesToHex(byte[] bytes) {
+        Formatter result = new Formatter();
+        for (byte b : bytes) {
+            result.format("%02x", b);
+        }
+        return result.toString();
+    }
+
     /* FILE DELETION */
 
     /** Deletes FILE if it exists and is not a directory.  Returns true
@@ -152,6 +197,22 @@ class Utils {
         }
     }
 
+    /** Return an object of type T deserialized from BYTES, casting it to
+     *  EXPECTEDCLASS.  Throws IllegalArgumentException in case of problems. */
+    static <T extends Serializable> T deserialize(byte[] bytes,
+                                                  Class<T> expectedClass) {
+        try {
+            ObjectInputStream in =
+                new ObjectInputStream(new ByteArrayInputStream(bytes));
+            T result = expectedClass.cast(in.readObject());
+            in.close();
+            return result;
+        } catch (IOException | ClassCastException
+                 | ClassNotFoundException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
     /** Write OBJ to FILE. */
     static void writeObject(File file, Serializable obj) {
         writeContents(file, serialize(obj));
@@ -222,6 +283,67 @@ class Utils {
 
 
 
+    /* BINARY ENCODING */
+
+    /** Write VALUE to OUT as an unsigned varint, seven bits per byte. */
+    static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /** Read an unsigned varint from IN. */
+    static long readVarint(ByteBuffer in) {
+        long result = 0;
+        for (int shift = 0;; shift += 7) {
+            byte b = in.get();
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+    }
+
+    /** Write STR to OUT as a varint length followed by its UTF-8 bytes. */
+    static void writeString(ByteArrayOutputStream out, String str) {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /** Read a string written by writeString from IN. */
+    static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[(int) readVarint(in)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Write the hexadecimal SHA-1 UID ID to OUT as 20 raw bytes. */
+    static void writeId(ByteArrayOutputStream out, String id) {
+        out.write(hexToBytes(id), 0, UID_LENGTH / 2);
+    }
+
+    /** Read a 20-byte SHA-1 UID from IN as a hexadecimal numeral. */
+    static String readId(ByteBuffer in) {
+        byte[] id = new byte[UID_LENGTH / 2];
+        in.get(id);
+        return bytesToHex(id);
+    }
+
+    /** Write the hexadecimal SHA-1 UID ID to the stream OUT as 20 raw bytes. */
+    static void writeId(DataOutput out, String id) throws IOException {
+        out.write(hexToBytes(id), 0, UID_LENGTH / 2);
+    }
+
+    /** Read a 20-byte SHA-1 UID from the stream IN as a hexadecimal numeral. */
+    static String readId(DataInput in) throws IOException {
+        byte[] id = new byte[UID_LENGTH / 2];
+        in.readFully(id);
+        return bytesToHex(id);
+    }
+
     /* MESSAGES AND ERROR REPORTING */
 
     /** Return a GitletException whose message is composed from MSG and ARGS as